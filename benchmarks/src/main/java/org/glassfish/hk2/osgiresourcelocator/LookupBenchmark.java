@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import org.glassfish.hk2.osgiresourcelocator.benchmark.BenchmarkService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures lookups of {@link ServiceLoader} and {@link ResourceFinder} in an OSGi framework with a given number of
+ * bundles, each of which provides the looked up service and has the looked up entry. Run with {@code -prof gc}
+ * to see how much every lookup allocates, e.g.:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar LookupBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int bundles;
+
+    private SyntheticFramework framework;
+
+    private MethodHandle lookupProviderClasses;
+
+    private MethodHandle lookupProviderInstances;
+
+    private MethodHandle findEntry;
+
+    private MethodHandle findEntries;
+
+    private MethodHandle findEntriesByPattern;
+
+    @Setup
+    public void setUp() throws Throwable {
+        framework = SyntheticFramework.start(bundles);
+        framework.startLocator();
+        lookupProviderClasses = framework.lookupProviderClasses();
+        lookupProviderInstances = framework.lookupProviderInstances();
+        findEntry = framework.findEntry();
+        findEntries = framework.findEntries();
+        findEntriesByPattern = framework.findEntriesByPattern();
+        int found = 0;
+        for (Object providerClass : (Iterable<?>) lookupProviderClasses.invokeExact((Class) BenchmarkService.class)) {
+            found++;
+        }
+        if (found != bundles) {
+            throw new IllegalStateException("Found " + found + " providers in " + bundles + " bundles");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        framework.stop();
+    }
+
+    @Benchmark
+    public void lookupProviderClasses(Blackhole blackhole) throws Throwable {
+        for (Object providerClass : (Iterable<?>) lookupProviderClasses.invokeExact((Class) BenchmarkService.class)) {
+            blackhole.consume(providerClass);
+        }
+    }
+
+    @Benchmark
+    public void lookupProviderInstances(Blackhole blackhole) throws Throwable {
+        for (Object provider : (Iterable<?>) lookupProviderInstances.invokeExact((Class) BenchmarkService.class)) {
+            blackhole.consume(provider);
+        }
+    }
+
+    /**
+     * Lookup of a service nobody provides.
+     */
+    @Benchmark
+    public Iterable<?> lookupMissingProviderClasses() throws Throwable {
+        return (Iterable<?>) lookupProviderClasses.invokeExact((Class) Runnable.class);
+    }
+
+    @Benchmark
+    public URL findEntry() throws Throwable {
+        return (URL) findEntry.invokeExact(SyntheticFramework.DESCRIPTOR);
+    }
+
+    @Benchmark
+    public List<?> findEntries() throws Throwable {
+        return (List<?>) findEntries.invokeExact(SyntheticFramework.DESCRIPTOR);
+    }
+
+    @Benchmark
+    public long findEntriesByPattern() throws Throwable {
+        return ((Stream<?>) findEntriesByPattern.invokeExact("META-INF", "*.xml", false)).count();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.StringTokenizer;
+
+/**
+ * The Scanner based parser {@link ServiceFileParser} replaced, kept as a baseline for
+ * {@link ServiceFileParserBenchmark}.
+ */
+final class ScannerServiceFileParser {
+
+    private ScannerServiceFileParser() {
+    }
+
+    static List<String> parse(InputStream is) throws IOException {
+        List<String> providerNames = new ArrayList<String>();
+        try {
+            Scanner scanner = new Scanner(is);
+            final String commentPattern = "#"; // NOI18N
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine();
+                if (!line.startsWith(commentPattern)) {
+                    StringTokenizer st = new StringTokenizer(line);
+                    while (st.hasMoreTokens()) {
+                        providerNames.add(st.nextToken());
+                        break; // Only one entry per line
+                    }
+                }
+            }
+        } finally {
+            is.close();
+        }
+        return providerNames;
+    }
+}
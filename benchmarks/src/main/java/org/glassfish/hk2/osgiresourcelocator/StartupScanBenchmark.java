@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work done when the osgi-resource-locator bundle starts in an OSGi framework with a given number of
+ * bundles: scanning all of them for service files, and indexing their entries, which the first resource lookup
+ * starts in the background.
+ * Bundles are installed and resolved once per trial, so only our own work is measured.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartupScanBenchmark {
+
+    /**
+     * Framework whose locator bundle is stopped before every invocation.
+     */
+    @State(Scope.Benchmark)
+    public static class Stopped {
+
+        @Param({"10", "100", "1000"})
+        public int bundles;
+
+        SyntheticFramework framework;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            framework = SyntheticFramework.start(bundles);
+        }
+
+        @TearDown(Level.Invocation)
+        public void stopLocator() throws Exception {
+            framework.stopLocator();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            framework.stop();
+        }
+    }
+
+    /**
+     * Framework whose locator bundle is started afresh before every invocation.
+     */
+    @State(Scope.Benchmark)
+    public static class Started {
+
+        @Param({"10", "100", "1000"})
+        public int bundles;
+
+        SyntheticFramework framework;
+
+        MethodHandle findEntry;
+
+        MethodHandle awaitIndex;
+
+        // ResourceFinder of the locator started for the current invocation
+        Object resourceFinder;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            framework = SyntheticFramework.start(bundles);
+            framework.startLocator();
+            findEntry = framework.findEntry();
+            awaitIndex = framework.awaitIndex();
+            framework.stopLocator();
+        }
+
+        @Setup(Level.Invocation)
+        public void startLocator() throws Throwable {
+            framework.startLocator();
+            resourceFinder = framework.resourceFinder();
+        }
+
+        @TearDown(Level.Invocation)
+        public void stopLocator() throws Exception {
+            framework.stopLocator();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            framework.stop();
+        }
+    }
+
+    /**
+     * Starting the locator scans all bundles for service files before it returns.
+     */
+    @Benchmark
+    public void scanServiceFiles(Stopped state) throws Exception {
+        state.framework.startLocator();
+    }
+
+    /**
+     * The first resource lookup starts indexing the entries of all bundles in the background and asks the bundles
+     * directly meanwhile. Measured till the index is complete.
+     */
+    @Benchmark
+    public URL indexEntries(Started state) throws Throwable {
+        final URL url = (URL) state.findEntry.invokeExact(SyntheticFramework.DESCRIPTOR);
+        state.awaitIndex.invoke(state.resourceFinder);
+        return url;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import org.glassfish.hk2.osgiresourcelocator.benchmark.BenchmarkService;
+import org.glassfish.hk2.osgiresourcelocator.benchmark.provider.BenchmarkProvider;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * An OSGi framework launched in process, populated with synthetic bundles and the osgi-resource-locator bundle.
+ *
+ * Every synthetic bundle offers its own copy of {@link BenchmarkProvider} as provider of {@link BenchmarkService},
+ * and has a {@link #DESCRIPTOR} as well as a few other entries for {@link ResourceFinder} to look at.
+ *
+ * The locator bundle loads its own copies of the locator classes, which are not the ones on the class path,
+ * so its lookup methods are called through method handles.
+ */
+final class SyntheticFramework {
+
+    /**
+     * Entry every synthetic bundle has.
+     */
+    static final String DESCRIPTOR = "META-INF/benchmark.xml";
+
+    /**
+     * Number of entries of every synthetic bundle besides the descriptor and the provider.
+     */
+    private static final int DATA_ENTRIES = 10;
+
+    private static final String LOCATOR_BUNDLE = "/osgi-resource-locator.jar";
+
+    private static final String LOCATOR_PROPERTY_PREFIX = "org.glassfish.hk2.osgiresourcelocator.";
+
+    private final Path storage;
+
+    private final Framework framework;
+
+    private final Bundle locator;
+
+    private SyntheticFramework(Path storage, Framework framework, Bundle locator) {
+        this.storage = storage;
+        this.framework = framework;
+        this.locator = locator;
+    }
+
+    /**
+     * Starts a framework with the given number of synthetic bundles, all of them resolved.
+     * The locator bundle is installed, but not started.
+     */
+    static SyntheticFramework start(int bundles) throws IOException, BundleException {
+        final Path storage = Files.createTempDirectory("osgi-resource-locator-benchmark");
+        final Map<String, String> config = new HashMap<String, String>();
+        config.put(Constants.FRAMEWORK_STORAGE, storage.toString());
+        config.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        config.put(Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA, BenchmarkService.class.getPackage().getName());
+        // lets e.g. -Dorg.glassfish.hk2.osgiresourcelocator.scanThreads=1 be passed through to the locator
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(LOCATOR_PROPERTY_PREFIX)) {
+                config.put(name, System.getProperty(name));
+            }
+        }
+        final Framework framework =
+                java.util.ServiceLoader.load(FrameworkFactory.class).iterator().next().newFramework(config);
+        framework.start();
+        final BundleContext context = framework.getBundleContext();
+        final byte[] providerClass = readClass(BenchmarkProvider.class);
+        for (int i = 0; i < bundles; i++) {
+            context.installBundle("synthetic:" + i, new ByteArrayInputStream(createBundle(i, providerClass)));
+        }
+        final InputStream in = SyntheticFramework.class.getResourceAsStream(LOCATOR_BUNDLE);
+        if (in == null) {
+            throw new IOException(LOCATOR_BUNDLE + " not found, the benchmarks have to be run from the packaged jar");
+        }
+        final Bundle locator = context.installBundle("osgi-resource-locator", in);
+        framework.adapt(FrameworkWiring.class).resolveBundles(null);
+        return new SyntheticFramework(storage, framework, locator);
+    }
+
+    void startLocator() throws BundleException {
+        locator.start();
+    }
+
+    void stopLocator() throws BundleException {
+        locator.stop();
+    }
+
+    /**
+     * @return handle of a public static method of a class of the locator bundle
+     */
+    MethodHandle findStatic(String className, String methodName, MethodType type)
+            throws ReflectiveOperationException {
+        return MethodHandles.publicLookup().findStatic(locator.loadClass(className), methodName, type);
+    }
+
+    MethodHandle lookupProviderClasses() throws ReflectiveOperationException {
+        return findStatic(ServiceLoader.class.getName(), "lookupProviderClasses",
+                MethodType.methodType(Iterable.class, Class.class));
+    }
+
+    MethodHandle lookupProviderInstances() throws ReflectiveOperationException {
+        return findStatic(ServiceLoader.class.getName(), "lookupProviderInstances",
+                MethodType.methodType(Iterable.class, Class.class));
+    }
+
+    MethodHandle findEntry() throws ReflectiveOperationException {
+        return findStatic(ResourceFinder.class.getName(), "findEntry",
+                MethodType.methodType(java.net.URL.class, String.class));
+    }
+
+    /**
+     * @return handle of {@link ResourceFinderImpl#awaitIndex()}
+     */
+    MethodHandle awaitIndex() throws ReflectiveOperationException {
+        return MethodHandles.publicLookup().findVirtual(locator.loadClass(ResourceFinderImpl.class.getName()),
+                "awaitIndex", MethodType.methodType(void.class));
+    }
+
+    /**
+     * @return the {@link ResourceFinder} singleton of the locator bundle, which changes whenever it is started
+     */
+    Object resourceFinder() throws Throwable {
+        final Class<?> finderClass = locator.loadClass(ResourceFinder.class.getName());
+        return MethodHandles.privateLookupIn(finderClass, MethodHandles.lookup())
+                .findStaticGetter(finderClass, "_me", finderClass).invoke();
+    }
+
+    MethodHandle findEntries() throws ReflectiveOperationException {
+        return findStatic(ResourceFinder.class.getName(), "findEntries",
+                MethodType.methodType(List.class, String.class));
+    }
+
+    MethodHandle findEntriesByPattern() throws ReflectiveOperationException {
+        return findStatic(ResourceFinder.class.getName(), "findEntries",
+                MethodType.methodType(Stream.class, String.class, String.class, boolean.class));
+    }
+
+    /**
+     * Stops the framework and deletes its storage.
+     */
+    void stop() throws BundleException, InterruptedException, IOException {
+        framework.stop();
+        framework.waitForStop(0);
+        final Stream<Path> paths = Files.walk(storage);
+        try {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } finally {
+            paths.close();
+        }
+    }
+
+    private static byte[] createBundle(int index, byte[] providerClass) throws IOException {
+        final Manifest manifest = new Manifest();
+        final Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        attributes.putValue(Constants.BUNDLE_SYMBOLICNAME, "synthetic" + index);
+        attributes.putValue(Constants.IMPORT_PACKAGE, BenchmarkService.class.getPackage().getName());
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final JarOutputStream jar = new JarOutputStream(bytes, manifest);
+        try {
+            // like jar tools do, list directories too, the framework does not know them otherwise
+            jar.putNextEntry(new JarEntry("META-INF/services/"));
+            jar.putNextEntry(new JarEntry("META-INF/services/" + BenchmarkService.class.getName()));
+            jar.write(("# synthetic bundle " + index + "\n" + BenchmarkProvider.class.getName() + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            jar.putNextEntry(new JarEntry(DESCRIPTOR));
+            jar.write(("<benchmark index=\"" + index + "\"/>\n").getBytes(StandardCharsets.UTF_8));
+            final String providerPath = BenchmarkProvider.class.getName().replace('.', '/') + ".class";
+            for (int i = providerPath.indexOf('/'); i != -1; i = providerPath.indexOf('/', i + 1)) {
+                jar.putNextEntry(new JarEntry(providerPath.substring(0, i + 1)));
+            }
+            jar.putNextEntry(new JarEntry(providerPath));
+            jar.write(providerClass);
+            jar.putNextEntry(new JarEntry("data/"));
+            jar.putNextEntry(new JarEntry("data/" + index + "/"));
+            for (int i = 0; i < DATA_ENTRIES; i++) {
+                jar.putNextEntry(new JarEntry("data/" + index + "/entry" + i + ".txt"));
+                jar.write(("entry " + i).getBytes(StandardCharsets.UTF_8));
+            }
+        } finally {
+            jar.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readClass(Class<?> c) throws IOException {
+        final InputStream in = c.getResourceAsStream(c.getSimpleName() + ".class");
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -26,16 +26,26 @@ import org.osgi.framework.BundleContext;
  */
 public class Activator implements BundleActivator {
 
+    private ServiceLoaderImpl serviceLoader;
+
+    private ResourceFinderImpl resourceFinder;
+
     public void start(BundleContext context) throws Exception {
-        ServiceLoaderImpl serviceLoader = new ServiceLoaderImpl();
+        serviceLoader = new ServiceLoaderImpl();
         serviceLoader.trackBundles();
         ServiceLoader.initialize(serviceLoader);
-        ResourceFinderImpl resourceFinder = new ResourceFinderImpl();
+        resourceFinder = new ResourceFinderImpl();
+        resourceFinder.trackBundles();
         ResourceFinder.initialize(resourceFinder);
     }
 
     public void stop(BundleContext context) throws Exception {
         ServiceLoader.reset();
+        serviceLoader.stopTracking();
+        serviceLoader = null;
+        ResourceFinder.reset();
+        resourceFinder.stopTracking();
+        resourceFinder = null;
     }
 
 }
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import org.osgi.framework.Bundle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of the contents of META-INF/services files of bundles, so that they don't have to be read
+ * again when the framework restarts and the bundles have not changed.
+ *
+ * A bundle's cached data is used only if its location, symbolic name, version and last modification time are
+ * still the same as when the data was recorded. A bundle installed by reference to a jar is read by the framework
+ * from that jar, which may change without the bundle being updated, so the jar's last modification time and length
+ * must not have changed either. Bundles installed by reference to a directory are not cached at all, as files in
+ * there can change without the directory showing it. As multi-release bundles have different service files for
+ * different versions of Java, the cache is only used by the feature version of Java which has written it.
+ * The file is written to a temporary file first and then moved in place, and any problem while reading it
+ * results in an empty cache, so a damaged or foreign file is never a reason for not finding providers.
+ *
+ * The file is a sequence of big endian values as written by {@link DataOutputStream}:
+ * <pre>
+ * magic (int) format version (short) Java feature version (int) bundle count (int)
+ * for every bundle:
+ *     location (UTF) symbolic name (UTF) version (UTF) last modified (long)
+ *     referenced jar's last modified (long) referenced jar's length (long) service count (int)
+ *     for every service:
+ *         service name (UTF) provider count (int) provider names (UTF)...
+ * </pre>
+ *
+ * Instances are thread safe.
+ */
+final class ProvidersCache {
+
+    private static final int MAGIC = 0x484B3253; // "HK2S"
+
+    private static final short FORMAT_VERSION = 3;
+
+    // stands for the referenced jar of bundles which have not been installed by reference
+    private static final long[] NO_SOURCE = {0L, 0L};
+
+    /**
+     * Data read from the file, keyed by bundle location.
+     */
+    private final Map<String, Entry> loaded;
+
+    /**
+     * Data recorded in this session, keyed by bundle location. This is what gets stored,
+     * so entries of bundles that are no longer installed don't survive a restart.
+     */
+    private final Map<String, Entry> recorded = new ConcurrentHashMap<String, Entry>();
+
+    private ProvidersCache(Map<String, Entry> loaded) {
+        this.loaded = loaded;
+    }
+
+    /**
+     * Reads the cache from the given file.
+     *
+     * @return the cache read from the file, an empty cache if the file does not exist
+     * @throws IOException if the file could not be read or is not a valid cache
+     */
+    static ProvidersCache load(File file) throws IOException {
+        if (!file.isFile()) {
+            return new ProvidersCache(Collections.<String, Entry>emptyMap());
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readShort() != FORMAT_VERSION) {
+                throw new IOException(file + " is not a providers cache of a supported version");
+            }
+            if (in.readInt() != ServiceLoaderImpl.JAVA_FEATURE_VERSION) {
+                // written by another version of Java, which may have seen other versions of service files
+                return empty();
+            }
+            final int bundleCount = in.readInt();
+            final Map<String, Entry> entries = new HashMap<String, Entry>();
+            for (int i = 0; i < bundleCount; i++) {
+                final String location = in.readUTF();
+                final String symbolicName = in.readUTF();
+                final String version = in.readUTF();
+                final long lastModified = in.readLong();
+                final long[] source = {in.readLong(), in.readLong()};
+                final int serviceCount = in.readInt();
+                final Map<String, List<String>> serviceToProvidersMap = new LinkedHashMap<String, List<String>>();
+                for (int j = 0; j < serviceCount; j++) {
+                    final String serviceName = in.readUTF();
+                    final int providerCount = in.readInt();
+                    // don't size the list upfront, a corrupt count must not make us allocate a huge array
+                    final List<String> providerNames = new ArrayList<String>();
+                    for (int k = 0; k < providerCount; k++) {
+                        providerNames.add(in.readUTF());
+                    }
+                    serviceToProvidersMap.put(serviceName, Collections.unmodifiableList(providerNames));
+                }
+                entries.put(location, new Entry(symbolicName, version, lastModified, source,
+                        Collections.unmodifiableMap(serviceToProvidersMap)));
+            }
+            return new ProvidersCache(entries);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt providers cache " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return an empty cache
+     */
+    static ProvidersCache empty() {
+        return new ProvidersCache(Collections.<String, Entry>emptyMap());
+    }
+
+    /**
+     * Returns the cached service files of the given bundle, provided they are still valid. The data is also
+     * recorded to be stored again.
+     *
+     * @return map of service name to provider names, empty if the bundle has no service files,
+     * null if nothing valid is cached for the bundle
+     */
+    Map<String, List<String>> get(Bundle bundle) {
+        final String location = bundle.getLocation();
+        final Entry entry = loaded.get(location);
+        if (entry == null || !entry.matches(bundle, getSource(bundle))) {
+            return null;
+        }
+        recorded.put(location, entry);
+        return entry.serviceToProvidersMap;
+    }
+
+    /**
+     * Records the service files of the given bundle.
+     *
+     * @param serviceToProvidersMap map of service name to provider names, empty if the bundle has no service files
+     */
+    void put(Bundle bundle, Map<String, List<String>> serviceToProvidersMap) {
+        final long[] source = getSource(bundle);
+        if (source == null) return;
+        recorded.put(bundle.getLocation(), new Entry(nonNull(bundle.getSymbolicName()),
+                bundle.getVersion().toString(), bundle.getLastModified(), source, serviceToProvidersMap));
+    }
+
+    /**
+     * @return last modification time and length of the jar the given bundle has been installed from by reference,
+     * {@link #NO_SOURCE} if it has not been installed by reference, null if it has been installed by reference
+     * to something else, e.g., a directory, in which case it can't be cached
+     */
+    private static long[] getSource(Bundle bundle) {
+        final String location = bundle.getLocation();
+        if (location == null || !location.startsWith(ResourceFinderImpl.REFERENCE_PROTOCOL)) {
+            return NO_SOURCE;
+        }
+        final File source = ResourceFinderImpl.getSource(bundle);
+        return source != null && source.isFile() ? new long[] {source.lastModified(), source.length()} : null;
+    }
+
+    /**
+     * Writes what has been recorded so far to the given file.
+     */
+    void store(File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        final Map<String, Entry> entries = new HashMap<String, Entry>(recorded);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            out.writeInt(ServiceLoaderImpl.JAVA_FEATURE_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                final Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeUTF(entry.symbolicName);
+                out.writeUTF(entry.version);
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.source[0]);
+                out.writeLong(entry.source[1]);
+                out.writeInt(entry.serviceToProvidersMap.size());
+                for (Map.Entry<String, List<String>> service : entry.serviceToProvidersMap.entrySet()) {
+                    out.writeUTF(service.getKey());
+                    out.writeInt(service.getValue().size());
+                    for (String providerName : service.getValue()) {
+                        out.writeUTF(providerName);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String nonNull(String s) {
+        return s != null ? s : "";
+    }
+
+    private static class Entry {
+        private final String symbolicName;
+        private final String version;
+        private final long lastModified;
+        // last modification time and length of the referenced jar, see getSource()
+        private final long[] source;
+        private final Map<String, List<String>> serviceToProvidersMap;
+
+        private Entry(String symbolicName, String version, long lastModified, long[] source,
+                      Map<String, List<String>> serviceToProvidersMap) {
+            this.symbolicName = symbolicName;
+            this.version = version;
+            this.lastModified = lastModified;
+            this.source = source;
+            this.serviceToProvidersMap = serviceToProvidersMap;
+        }
+
+        /**
+         * @param source what the bundle's referenced jar looks like now, see getSource()
+         */
+        boolean matches(Bundle bundle, long[] source) {
+            return lastModified == bundle.getLastModified()
+                    && source != null && Arrays.equals(this.source, source)
+                    && symbolicName.equals(nonNull(bundle.getSymbolicName()))
+                    && version.equals(bundle.getVersion().toString());
+        }
+    }
+}
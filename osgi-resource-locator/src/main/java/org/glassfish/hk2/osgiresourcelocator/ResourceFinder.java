@@ -16,8 +16,13 @@
 
 package org.glassfish.hk2.osgiresourcelocator;
 
+import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * This class provides helper methods to look up resources that are part of OSGi bundles,
@@ -29,12 +34,19 @@ import java.util.List;
  * @author Sanjeeb.Sahoo@Sun.COM
  */
 public abstract class ResourceFinder {
-    private static ResourceFinder _me;
+    private static volatile ResourceFinder _me;
 
-    public static void initialize(ResourceFinder singleton) {
+    /**
+     * Completed when the singleton is initialized, replaced by a new one when it is reset.
+     * Written with the class lock held.
+     */
+    private static volatile CompletableFuture<Void> ready = new CompletableFuture<Void>();
+
+    public static synchronized void initialize(ResourceFinder singleton) {
         if (singleton == null) throw new NullPointerException("Did you intend to call reset()?");
         if (_me != null) throw new IllegalStateException("Already initialzed with [" + _me + "]");
         _me = singleton;
+        ready.complete(null);
     }
 
     public static synchronized void reset() {
@@ -42,17 +54,69 @@ public abstract class ResourceFinder {
             throw new IllegalStateException("Not yet initialized");
         }
         _me = null;
+        ready = new CompletableFuture<Void>();
+    }
+
+    /**
+     * @return a future which completes when this class gets initialized, already completed if it has been.
+     * It never completes in a non-OSGi environment.
+     */
+    public static CompletableFuture<Void> whenReady() {
+        return ready.copy();
+    }
+
+    /**
+     * Waits until this class gets initialized or the timeout elapses, whichever comes first.
+     *
+     * @return true if this class has been initialized, false if the timeout elapsed before that
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public static boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ServiceLoader.await(ready, timeout, unit);
     }
 
 
     public static URL findEntry(String path) {
-        if (_me == null) return null;
-        return _me.findEntry1(path);
+        final ResourceFinder me = _me;
+        if (me == null) return null;
+        return me.findEntry1(path);
     }
 
     public static List<URL> findEntries(String path) {
-        if (_me == null) return null;
-        return _me.findEntries1(path);
+        final ResourceFinder me = _me;
+        if (me == null) return null;
+        return me.findEntries1(path);
+    }
+
+    /**
+     * Finds entries below a directory of all bundles whose names match a pattern, e.g., all descriptors
+     * in META-INF with findEntries("META-INF", "*.xml", false). Entries are found as the stream is consumed,
+     * so a caller which only needs the first few does not pay for looking at everything.
+     *
+     * @param directory directory to look in, "/" or "" for the root of bundles
+     * @param globPattern pattern the last element of the entry path has to match, in which '*' stands for
+     * any number of characters and '?' for exactly one. null is the same as "*".
+     * @param recurse whether to look in sub directories too
+     * @return matching entries of all bundles, null in a non-OSGi environment
+     */
+    public static Stream<URL> findEntries(String directory, String globPattern, boolean recurse) {
+        final ResourceFinder me = _me;
+        if (me == null) return null;
+        return me.findEntries1(directory, globPattern, recurse);
+    }
+
+    /**
+     * Reads the contents of the entries with the given path of all bundles, without going through URL
+     * connections where the bundle's files can be read directly. The returned buffers are read only and
+     * belong to the caller.
+     *
+     * @return contents of the entries, one buffer per bundle having the entry, null in a non-OSGi environment
+     * @throws IOException if an entry that was found could not be read
+     */
+    public static List<ByteBuffer> readEntries(String path) throws IOException {
+        final ResourceFinder me = _me;
+        if (me == null) return null;
+        return me.readEntries1(path);
     }
 
     /*package*/
@@ -60,4 +124,10 @@ public abstract class ResourceFinder {
 
     /*package*/
     abstract List<URL> findEntries1(String path);
+
+    /*package*/
+    abstract Stream<URL> findEntries1(String directory, String globPattern, boolean recurse);
+
+    /*package*/
+    abstract List<ByteBuffer> readEntries1(String path) throws IOException;
 }
@@ -18,19 +18,138 @@ package org.glassfish.hk2.osgiresourcelocator;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleReference;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.util.tracker.BundleTracker;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * @author Sanjeeb.Sahoo@Sun.COM
  */
 public class ResourceFinderImpl extends ResourceFinder {
 
+    /**
+     * States of bundles whose entries are looked at, i.e., all but UNINSTALLED.
+     */
+    private static final int TRACKED_STATES =
+            Bundle.INSTALLED | Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING;
+
+    /*package*/ static final String REFERENCE_PROTOCOL = "reference:";
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private static final Predicate<URL> NOT_NULL = new Predicate<URL>() {
+        public boolean test(URL url) {
+            return url != null;
+        }
+    };
+
     private BundleContext bundleContext;
 
+    private EntriesTracker bundleTracker;
+
+    /*
+     * Index of entry path to the bundles having such an entry. Paths are relative to the bundle root, directories
+     * end with '/'. Index entries are never modified once they are put in the map, so readers don't need any lock.
+     * Class files, which make up most entries of most bundles, are left out; the directories they are in tell
+     * which bundles may have them. The index is built in the background when it is needed for the first time
+     * and then kept up to date as the bundle tracker reports changes.
+     * Each distinct path is kept only once, however many bundles have it: index entries and the per bundle
+     * lists below all refer to the string instance which was used when the path was indexed first.
+     */
+    private final ConcurrentMap<String, IndexEntry> entryIndex = new ConcurrentHashMap<String, IndexEntry>();
+
+    /*
+     * All paths of the index in their natural order, so that all paths below a directory can be found
+     * by looking at a sub set. Maintained along with the index.
+     */
+    private final NavigableSet<String> sortedPaths = new ConcurrentSkipListSet<String>();
+
+    // Entry paths per indexed bundle, guarded by indexLock
+    private final Map<Long, String[]> indexedBundles = new HashMap<Long, String[]>();
+
+    /*
+     * Ids of bundles whose entries are not in the index, because they are still to be listed or could not be
+     * listed. Lookups probe them the old way. Guarded by indexLock, replaced on change.
+     */
+    private volatile long[] unindexedBundles = new long[0];
+
+    /*
+     * Bundles waiting for their entries to be listed, keyed by bundle id. The value stands for the latest
+     * request, so that a listing is only put in the index if the bundle has not changed again meanwhile.
+     * Guarded by indexLock.
+     */
+    private final Map<Long, Object> pendingBundles = new HashMap<Long, Object>();
+
+    private final Object indexLock = new Object();
+
+    // builds the index, so that the first lookup does not have to wait for it
+    private ExecutorService indexExecutor;
+
+    /*
+     * Open jars of bundles installed by reference, keyed by bundle id, shared by all readEntries() calls.
+     * A jar is closed when its bundle is updated or uninstalled. Only used while bundles are tracked.
+     */
+    private final ConcurrentMap<Long, ZipFile> zipFiles = new ConcurrentHashMap<Long, ZipFile>();
+
+    /*
+     * Ids of bundles updated while being tracked. An update may have come from a stream rather than from the
+     * bundle's location, so their files are not read directly anymore.
+     */
+    private final Set<Long> updatedBundles = ConcurrentHashMap.<Long>newKeySet();
+
+    /*
+     * Whether the file of a bundle installed by reference may be read directly, per bundle revision,
+     * see getDirectSource(). Guarded by itself.
+     */
+    private final Map<BundleRevision, DirectSource> directSources = new WeakHashMap<BundleRevision, DirectSource>();
+
+    // whether the index is being built or kept up to date, written with indexLock held
+    private volatile boolean indexing;
+
+    // the task building the index, null till it has been started, guarded by indexLock
+    private Future<?> indexBuild;
+
     public ResourceFinderImpl() {
         ClassLoader cl = getClass().getClassLoader();
         if (cl instanceof BundleReference) {
@@ -42,20 +161,886 @@ public class ResourceFinderImpl extends ResourceFinder {
         }
     }
 
+    /**
+     * Starts keeping an index of bundle entries, so that lookups don't have to ask every bundle.
+     * The index itself is built in the background once the first lookup asks for it. Till a bundle's
+     * entries are in the index, lookups ask that bundle.
+     */
+    public void trackBundles() {
+        assert (bundleTracker == null);
+        indexExecutor = Executors.newSingleThreadExecutor(
+                new ServiceLoaderImpl.DaemonThreadFactory("osgi-resource-locator-index"));
+        bundleTracker = new EntriesTracker();
+        bundleTracker.open();
+    }
+
+    /**
+     * Stops tracking bundles and drops the index. Lookups then ask every bundle again.
+     */
+    public void stopTracking() {
+        if (bundleTracker == null) return;
+        bundleTracker.close();
+        indexExecutor.shutdownNow();
+        synchronized (indexLock) {
+            bundleTracker = null;
+            indexing = false;
+            if (indexBuild != null) {
+                // it may not have started yet, in which case shutting down the executor would leave it pending
+                indexBuild.cancel(true);
+                indexBuild = null;
+            }
+            entryIndex.clear();
+            sortedPaths.clear();
+            indexedBundles.clear();
+            unindexedBundles = new long[0];
+            pendingBundles.clear();
+        }
+        for (Long bundleId : zipFiles.keySet()) {
+            closeZipFile(bundleId);
+        }
+        updatedBundles.clear();
+        synchronized (directSources) {
+            directSources.clear();
+        }
+    }
+
     URL findEntry1(String path) {
-        for (Bundle bundle : bundleContext.getBundles()) {
-            URL url = bundle.getEntry(path);
-            if (url != null) return url;
+        final long[] bundleIds = lookup(path);
+        if (bundleIds == null) {
+            for (Bundle bundle : bundleContext.getBundles()) {
+                URL url = bundle.getEntry(path);
+                if (url != null) return url;
+            }
+            return null;
+        }
+        for (long bundleId : bundleIds) {
+            final Bundle bundle = bundleContext.getBundle(bundleId);
+            if (bundle != null) {
+                URL url = bundle.getEntry(path);
+                if (url != null) return url;
+            }
         }
         return null;
     }
 
     List<URL> findEntries1(String path) {
         List<URL> urls = new ArrayList<URL>();
-        for (Bundle bundle : bundleContext.getBundles()) {
-            URL url = bundle.getEntry(path);
-            if (url != null) urls.add(url);
+        final long[] bundleIds = lookup(path);
+        if (bundleIds == null) {
+            for (Bundle bundle : bundleContext.getBundles()) {
+                URL url = bundle.getEntry(path);
+                if (url != null) urls.add(url);
+            }
+            return urls;
+        }
+        for (long bundleId : bundleIds) {
+            final Bundle bundle = bundleContext.getBundle(bundleId);
+            if (bundle != null) {
+                URL url = bundle.getEntry(path);
+                if (url != null) urls.add(url);
+            }
         }
         return urls;
     }
+
+    Stream<URL> findEntries1(String directory, String globPattern, boolean recurse) {
+        String normalized = normalize(directory);
+        if (!normalized.isEmpty() && !normalized.endsWith("/")) {
+            normalized += "/";
+        }
+        final String prefix = normalized;
+        final String pattern = globPattern != null ? globPattern : "*";
+        final Predicate<String> filter = new Predicate<String>() {
+            public boolean test(String path) {
+                return isMatch(path, prefix, pattern, recurse);
+            }
+        };
+        if (!ensureIndex()) {
+            return scan(bundleContext.getBundles(), prefix, filter, recurse);
+        }
+        if (mayMatchClassFile(pattern)) {
+            // class files are not indexed, so ask the bundles having the directory
+            final long[] bundleIds = lookup(prefix);
+            return scan(bundleIds != null ? getBundles(bundleIds) : bundleContext.getBundles(), prefix, filter,
+                    recurse);
+        }
+        // Taken first, as a bundle is put in the index before it is no longer unindexed, see index().
+        final long[] unindexed = unindexedBundles;
+        // Paths below the directory are all greater than or equal to the prefix and less than the upper bound.
+        final Set<String> candidates = prefix.isEmpty()
+                ? sortedPaths : sortedPaths.subSet(prefix, prefix + Character.MAX_VALUE);
+        final Stream<URL> indexed = candidates.stream().filter(filter).flatMap(new Function<String, Stream<URL>>() {
+            public Stream<URL> apply(String path) {
+                final long[] bundleIds = getBundleIds(path);
+                if (bundleIds == null) {
+                    // removed since the stream has been created
+                    return Stream.empty();
+                }
+                // bundles indexed since the stream has been created are scanned below
+                return entries(unindexed.length == 0 ? bundleIds : without(bundleIds, unindexed), path);
+            }
+        });
+        if (unindexed.length == 0) {
+            return indexed;
+        }
+        return Stream.concat(indexed, scan(getBundles(unindexed), prefix, filter, recurse));
+    }
+
+    /**
+     * @param values sorted in ascending order
+     * @param excluded sorted in ascending order
+     * @return the values which are not excluded
+     */
+    private static long[] without(long[] values, long[] excluded) {
+        final long[] result = new long[values.length];
+        int n = 0;
+        for (long value : values) {
+            if (Arrays.binarySearch(excluded, value) < 0) {
+                result[n++] = value;
+            }
+        }
+        return n == values.length ? values : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @return the bundles with the given ids which are still installed
+     */
+    private Bundle[] getBundles(long[] bundleIds) {
+        final List<Bundle> bundles = new ArrayList<Bundle>(bundleIds.length);
+        for (long bundleId : bundleIds) {
+            final Bundle bundle = bundleContext.getBundle(bundleId);
+            if (bundle != null) {
+                bundles.add(bundle);
+            }
+        }
+        return bundles.toArray(new Bundle[bundles.size()]);
+    }
+
+    List<ByteBuffer> readEntries1(String path) throws IOException {
+        final String normalized = normalize(path);
+        if (normalized.isEmpty() || normalized.endsWith("/")) {
+            // directories have no content
+            return Collections.emptyList();
+        }
+        final long[] bundleIds = lookup(path);
+        final Bundle[] bundles;
+        if (bundleIds == null) {
+            bundles = bundleContext.getBundles();
+        } else {
+            bundles = new Bundle[bundleIds.length];
+            for (int i = 0; i < bundleIds.length; i++) {
+                bundles[i] = bundleContext.getBundle(bundleIds[i]);
+            }
+        }
+        final List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+        for (Bundle bundle : bundles) {
+            if (bundle != null) {
+                final ByteBuffer content = read(bundle, normalized);
+                if (content != null) {
+                    result.add(content);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads an entry of a bundle. The file system is read directly for bundles installed by reference to a file,
+     * as then the framework reads from the very same place: directories file by file, jars through a shared
+     * handle. Everything else goes through the bundle's entry URL.
+     *
+     * @return read only content of the entry, null if the bundle does not have it
+     */
+    private ByteBuffer read(Bundle bundle, String path) throws IOException {
+        // don't let relative paths escape a directory
+        final File source = path.contains("..") ? null : getDirectSource(bundle);
+        if (source != null) {
+            try {
+                return read(bundle, source, path);
+            } catch (IOException e) {
+                // the bundle is being updated or uninstalled or its file has been tampered with, ask the bundle
+            } catch (IllegalStateException e) {
+                // the shared jar has just been closed, ask the bundle
+            }
+        }
+        final URL url = bundle.getEntry(path);
+        if (url == null) {
+            return null;
+        }
+        // Depending on the framework, reading a directory fails or gives nothing, so check for that only then.
+        final byte[] content;
+        try {
+            final InputStream in = url.openStream();
+            try {
+                content = readFully(in, -1);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            if (bundle.getEntry(path + "/") != null) {
+                return null;
+            }
+            throw e;
+        }
+        if (content.length == 0 && bundle.getEntry(path + "/") != null) {
+            return null;
+        }
+        return ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+
+    /**
+     * The location of a bundle installed by reference tells where it came from, not where its current revision
+     * came from: the bundle may have been updated from a stream since, even before this bundle got started.
+     * So the file is only read directly once the manifest found there has been checked to be the one
+     * of the current revision, and again whenever the file changes.
+     *
+     * @return the file or directory the current revision of the bundle can be read from directly,
+     * null if the bundle has to be asked
+     */
+    private File getDirectSource(Bundle bundle) {
+        if (updatedBundles.contains(bundle.getBundleId())) {
+            return null;
+        }
+        final BundleRevision revision = bundle.adapt(BundleRevision.class);
+        if (revision == null) {
+            return null;
+        }
+        DirectSource directSource;
+        synchronized (directSources) {
+            directSource = directSources.get(revision);
+        }
+        if (directSource == null || !directSource.isCurrent()) {
+            directSource = new DirectSource(getSource(bundle));
+            if (directSource.file != null && !hasSameManifest(bundle, directSource.file)) {
+                directSource = new DirectSource(null);
+            }
+            synchronized (directSources) {
+                directSources.put(revision, directSource);
+            }
+        }
+        return directSource.file;
+    }
+
+    private boolean hasSameManifest(Bundle bundle, File source) {
+        try {
+            final ByteBuffer manifest = read(bundle, source, JarFile.MANIFEST_NAME);
+            if (manifest == null) {
+                return false;
+            }
+            final URL url = bundle.getEntry(JarFile.MANIFEST_NAME);
+            if (url == null) {
+                return false;
+            }
+            final InputStream in = url.openStream();
+            try {
+                return manifest.equals(ByteBuffer.wrap(readFully(in, manifest.remaining())));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        } catch (IllegalStateException e) {
+            // uninstalled meanwhile or the shared jar has just been closed
+            return false;
+        }
+    }
+
+    private ByteBuffer read(Bundle bundle, File source, String path) throws IOException {
+        if (source.isDirectory()) {
+            return readFile(new File(source, path));
+        } else if (source.isFile()) {
+            return readZipEntry(bundle.getBundleId(), source, path);
+        }
+        throw new FileNotFoundException(source.getPath());
+    }
+
+    /**
+     * @return the file or directory a bundle has been installed from by reference, null if it has not
+     */
+    /*package*/ static File getSource(Bundle bundle) {
+        final String location = bundle.getLocation();
+        if (location == null || !location.startsWith(REFERENCE_PROTOCOL)) {
+            return null;
+        }
+        try {
+            final URI uri = new URI(location.substring(REFERENCE_PROTOCOL.length()));
+            return "file".equals(uri.getScheme()) ? new File(uri) : null;
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private ByteBuffer readZipEntry(long bundleId, File jar, String path) throws IOException {
+        final boolean shared = bundleTracker != null;
+        ZipFile zipFile = shared ? zipFiles.get(bundleId) : null;
+        if (zipFile == null) {
+            zipFile = new ZipFile(jar);
+            if (shared) {
+                final ZipFile existing = zipFiles.putIfAbsent(bundleId, zipFile);
+                if (existing != null) {
+                    zipFile.close();
+                    zipFile = existing;
+                }
+            }
+        }
+        try {
+            final ZipEntry entry = zipFile.getEntry(path);
+            if (entry == null || entry.isDirectory()) {
+                return null;
+            }
+            final InputStream in = zipFile.getInputStream(entry);
+            try {
+                return ByteBuffer.wrap(readFully(in, entry.getSize())).asReadOnlyBuffer();
+            } finally {
+                in.close();
+            }
+        } finally {
+            if (!shared) {
+                zipFile.close();
+            }
+        }
+    }
+
+    /**
+     * Files are read rather than mapped: a mapping lives till the buffer gets garbage collected and keeps
+     * the file locked on some platforms for as long.
+     *
+     * @return read only content of the file, null if there is no such file
+     */
+    private static ByteBuffer readFile(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        final InputStream in = new FileInputStream(file);
+        try {
+            return ByteBuffer.wrap(readFully(in, file.length())).asReadOnlyBuffer();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void closeZipFile(long bundleId) {
+        final ZipFile zipFile = zipFiles.remove(bundleId);
+        if (zipFile != null) {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                // nothing we can do about it
+            }
+        }
+    }
+
+    /**
+     * @param size number of bytes expected, -1 if not known
+     */
+    private static byte[] readFully(InputStream in, long size) throws IOException {
+        if (size >= 0 && size <= Integer.MAX_VALUE - 8) {
+            final byte[] content = new byte[(int) size];
+            int length = 0;
+            int n;
+            while (length < content.length && (n = in.read(content, length, content.length - length)) != -1) {
+                length += n;
+            }
+            if (length == content.length && in.read() == -1) {
+                return content;
+            }
+            // the size was wrong, read the rest the slow way
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(content, 0, length);
+            return readRest(in, out);
+        }
+        return readRest(in, new ByteArrayOutputStream());
+    }
+
+    private static byte[] readRest(InputStream in, ByteArrayOutputStream out) throws IOException {
+        final byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the entries with the given path of the given bundles
+     */
+    private Stream<URL> entries(long[] bundleIds, final String path) {
+        return Arrays.stream(bundleIds).mapToObj(new LongFunction<URL>() {
+            public URL apply(long bundleId) {
+                final Bundle bundle = bundleContext.getBundle(bundleId);
+                return bundle != null ? bundle.getEntry(path) : null;
+            }
+        }).filter(NOT_NULL);
+    }
+
+    /**
+     * @param recurse whether to look at the subdirectories of the directory as well
+     * @return entries of the given bundles below the given directory which are accepted by the filter,
+     * found by listing the entries of one bundle at a time as the stream gets consumed
+     */
+    private static Stream<URL> scan(Bundle[] bundles, final String directory, final Predicate<String> filter,
+                                    final boolean recurse) {
+        return Arrays.stream(bundles).flatMap(new Function<Bundle, Stream<URL>>() {
+            public Stream<URL> apply(final Bundle bundle) {
+                final Set<String> paths = new TreeSet<String>();
+                try {
+                    listEntries(bundle, directory.isEmpty() ? "/" : directory, paths, true, recurse);
+                } catch (RuntimeException e) {
+                    // uninstalled meanwhile
+                    return Stream.empty();
+                }
+                return paths.stream().filter(filter).map(new Function<String, URL>() {
+                    public URL apply(String path) {
+                        return bundle.getEntry(path);
+                    }
+                }).filter(NOT_NULL);
+            }
+        });
+    }
+
+    /**
+     * @param path normalized entry path
+     * @param directory normalized directory, either empty or ending with '/'
+     * @return true if the path is below the directory, directly unless recurse is true, and its last element
+     * matches the glob pattern
+     */
+    /*package*/ static boolean isMatch(String path, String directory, String globPattern, boolean recurse) {
+        if (!path.startsWith(directory) || path.length() == directory.length()) {
+            return false;
+        }
+        // the last element of a directory's path is the name before the trailing '/'
+        final int end = path.endsWith("/") ? path.length() - 1 : path.length();
+        final int lastSlash = path.lastIndexOf('/', end - 1);
+        if (!recurse && lastSlash >= directory.length()) {
+            return false;
+        }
+        return isGlobMatch(globPattern, path, lastSlash + 1, end);
+    }
+
+    /**
+     * Matches the given part of a string against a glob pattern in which '*' stands for any number of
+     * characters and '?' for exactly one.
+     */
+    /*package*/ static boolean isGlobMatch(String pattern, String s, int start, int end) {
+        int p = 0;
+        int i = start;
+        // position of the last '*' in the pattern and where in the string we started matching after it
+        int star = -1;
+        int starMatch = 0;
+        while (i < end) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == s.charAt(i))) {
+                p++;
+                i++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                starMatch = i;
+            } else if (star != -1) {
+                // let the last '*' take one more character and retry
+                p = star + 1;
+                i = ++starMatch;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    /**
+     * @return false if the glob pattern cannot match any name ending with ".class"
+     */
+    /*package*/ static boolean mayMatchClassFile(String pattern) {
+        // Whatever comes before the last '*' can be matched by what comes before the suffix, so only
+        // the end of the pattern after that has to agree with the suffix.
+        final int tail = pattern.lastIndexOf('*') + 1;
+        for (int i = 1; i <= CLASS_SUFFIX.length(); i++) {
+            final int p = pattern.length() - i;
+            if (p < tail) {
+                return tail > 0;
+            }
+            final char c = pattern.charAt(p);
+            if (c != '?' && c != CLASS_SUFFIX.charAt(CLASS_SUFFIX.length() - i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isClassFile(String path) {
+        return path.endsWith(CLASS_SUFFIX);
+    }
+
+    /**
+     * @return ids of the bundles which may have an entry with the given path in ascending order,
+     * null if every bundle has to be asked
+     */
+    private long[] lookup(String path) {
+        if (!ensureIndex()) {
+            return null;
+        }
+        final String normalized = normalize(path);
+        if (normalized.isEmpty()) {
+            // the root, which every bundle has
+            return null;
+        }
+        // Taken first, as a bundle is put in the index before it is no longer unindexed, see index().
+        final long[] unindexed = unindexedBundles;
+        final long[] files;
+        if (isClassFile(normalized)) {
+            // class files are not indexed, but the bundles having them have their directory
+            final int slash = normalized.lastIndexOf('/');
+            if (slash == -1) {
+                return null;
+            }
+            files = getBundleIds(normalized.substring(0, slash + 1));
+        } else {
+            files = getBundleIds(normalized);
+        }
+        // Bundle.getEntry() does not insist on a trailing '/' for directories
+        final long[] directories = normalized.endsWith("/") ? null : getBundleIds(normalized + "/");
+        if (directories == null && unindexed.length == 0) {
+            return files != null ? files : unindexed;
+        }
+        final Set<Long> bundleIds = new TreeSet<Long>();
+        addAll(bundleIds, files);
+        addAll(bundleIds, directories);
+        addAll(bundleIds, unindexed);
+        final long[] result = new long[bundleIds.size()];
+        int i = 0;
+        for (Long bundleId : bundleIds) {
+            result[i++] = bundleId;
+        }
+        return result;
+    }
+
+    private long[] getBundleIds(String path) {
+        final IndexEntry entry = entryIndex.get(path);
+        return entry != null ? entry.bundleIds : null;
+    }
+
+    private static void addAll(Set<Long> set, long[] values) {
+        if (values != null) {
+            for (long value : values) {
+                set.add(value);
+            }
+        }
+    }
+
+    /**
+     * Strips leading slashes, as paths are always relative to the root of a bundle.
+     */
+    private static String normalize(String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/') {
+            start++;
+        }
+        return path.substring(start);
+    }
+
+    /**
+     * Starts building the index unless that has been done already. The bundles are listed in the background;
+     * till then lookups ask them.
+     *
+     * @return false if there is no index, because bundles are not tracked
+     */
+    private boolean ensureIndex() {
+        if (indexing) {
+            return true;
+        }
+        synchronized (indexLock) {
+            if (indexing) {
+                return true;
+            }
+            if (bundleTracker == null) {
+                return false;
+            }
+            final Map<Bundle, Object> requests = new LinkedHashMap<Bundle, Object>();
+            final Bundle[] bundles = bundleTracker.getBundles();
+            if (bundles != null) {
+                for (Bundle bundle : bundles) {
+                    requests.put(bundle, requestIndexing(bundle.getBundleId()));
+                }
+            }
+            indexing = true;
+            try {
+                indexBuild = indexExecutor.submit(new Runnable() {
+                    public void run() {
+                        for (Map.Entry<Bundle, Object> request : requests.entrySet()) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                return;
+                            }
+                            index(request.getKey(), request.getValue());
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // tracking is being stopped
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Starts building the index unless that has been done already, and waits till all bundles which were there
+     * at that time have been listed. This is mostly useful for tests and benchmarks, as the index is built
+     * in the background.
+     *
+     * @throws java.util.concurrent.CancellationException if tracking is stopped meanwhile
+     */
+    public void awaitIndex() throws InterruptedException, ExecutionException {
+        if (!ensureIndex()) return;
+        final Future<?> build;
+        synchronized (indexLock) {
+            build = indexBuild;
+        }
+        if (build != null) {
+            build.get();
+        }
+    }
+
+    /**
+     * (Re)indexes the entries of the given bundle, if the index is being built. The bundle is listed right away
+     * on the thread reporting the change, as the framework may rework the bundle's content once everybody
+     * has been told.
+     */
+    private void bundleChanged(Bundle bundle) {
+        closeZipFile(bundle.getBundleId());
+        final Object request;
+        synchronized (indexLock) {
+            if (!indexing) {
+                return;
+            }
+            request = requestIndexing(bundle.getBundleId());
+        }
+        index(bundle, request);
+    }
+
+    private void bundleRemoved(Bundle bundle) {
+        closeZipFile(bundle.getBundleId());
+        synchronized (indexLock) {
+            if (indexing) {
+                pendingBundles.remove(bundle.getBundleId());
+                unindex(bundle.getBundleId());
+                setUnindexed(bundle.getBundleId(), false);
+            }
+        }
+    }
+
+    /**
+     * Takes the bundle out of the index till its entries have been listed. Meanwhile lookups ask the bundle
+     * itself. Called with indexLock held.
+     *
+     * @return the request to pass to index()
+     */
+    private Object requestIndexing(long bundleId) {
+        setUnindexed(bundleId, true);
+        unindex(bundleId);
+        final Object request = new Object();
+        pendingBundles.put(bundleId, request);
+        return request;
+    }
+
+    /**
+     * Lists the entries of the bundle, without holding indexLock, and puts them in the index unless the bundle
+     * has changed again meanwhile.
+     */
+    private void index(Bundle bundle, Object request) {
+        final long bundleId = bundle.getBundleId();
+        final Set<String> paths = new HashSet<String>();
+        try {
+            listEntries(bundle, "/", paths, false, true);
+        } catch (RuntimeException e) {
+            // e.g., the bundle is being updated or uninstalled
+            paths.clear();
+        }
+        synchronized (indexLock) {
+            if (pendingBundles.get(bundleId) != request) {
+                // changed again or gone since, or tracking has been stopped
+                return;
+            }
+            pendingBundles.remove(bundleId);
+            if (paths.isEmpty() && bundleId != Constants.SYSTEM_BUNDLE_ID) {
+                // Every bundle has a manifest at least, so the framework has been busy with the bundle;
+                // fall back to asking the bundle itself.
+                return;
+            }
+            final String[] canonicalPaths = new String[paths.size()];
+            int i = 0;
+            for (String path : paths) {
+                final IndexEntry current = entryIndex.get(path);
+                final IndexEntry updated = current != null ? current.with(bundleId) : new IndexEntry(path, bundleId);
+                entryIndex.put(updated.path, updated);
+                if (current == null) {
+                    sortedPaths.add(updated.path);
+                }
+                canonicalPaths[i++] = updated.path;
+            }
+            indexedBundles.put(bundleId, canonicalPaths);
+            // only now, so that lookups which don't find the bundle in the index yet find it here
+            setUnindexed(bundleId, false);
+        }
+    }
+
+    // called with indexLock held
+    private void unindex(long bundleId) {
+        final String[] paths = indexedBundles.remove(bundleId);
+        if (paths == null) {
+            return;
+        }
+        for (String path : paths) {
+            final IndexEntry updated = entryIndex.get(path).without(bundleId);
+            if (updated == null) {
+                entryIndex.remove(path);
+                sortedPaths.remove(path);
+            } else {
+                entryIndex.put(path, updated);
+            }
+        }
+    }
+
+    // called with indexLock held
+    private void setUnindexed(long bundleId, boolean unindexed) {
+        final long[] current = unindexedBundles;
+        final int idx = Arrays.binarySearch(current, bundleId);
+        if (unindexed && idx < 0) {
+            unindexedBundles = IndexEntry.insert(current, -idx - 1, bundleId);
+        } else if (!unindexed && idx >= 0) {
+            unindexedBundles = IndexEntry.remove(current, idx);
+        }
+    }
+
+    /**
+     * Adds the entries below the given directory to the given set, including directories implied by the paths
+     * of entries, as jars need not have entries for directories.
+     *
+     * @param classFiles whether to add class files too
+     * @param recurse whether to add the entries of subdirectories too
+     */
+    private static void listEntries(Bundle bundle, String directory, Set<String> paths, boolean classFiles,
+                                    boolean recurse) {
+        final Enumeration<String> entries = bundle.getEntryPaths(directory);
+        if (entries == null) {
+            return;
+        }
+        while (entries.hasMoreElements()) {
+            final String path = normalize(entries.nextElement());
+            if (path.isEmpty() || paths.contains(path)) {
+                continue;
+            }
+            for (int slash = path.indexOf('/'); slash != -1 && slash < path.length() - 1;
+                 slash = path.indexOf('/', slash + 1)) {
+                paths.add(path.substring(0, slash + 1));
+            }
+            if (path.endsWith("/")) {
+                paths.add(path);
+                if (recurse) {
+                    listEntries(bundle, path, paths, classFiles, true);
+                }
+            } else if (classFiles || !isClassFile(path)) {
+                paths.add(path);
+            }
+        }
+    }
+
+    /**
+     * Bundles having a particular entry path.
+     */
+    private static class IndexEntry {
+        private final String path;
+        // sorted in ascending order
+        private final long[] bundleIds;
+
+        IndexEntry(String path, long bundleId) {
+            this(path, new long[]{bundleId});
+        }
+
+        private IndexEntry(String path, long[] bundleIds) {
+            this.path = path;
+            this.bundleIds = bundleIds;
+        }
+
+        IndexEntry with(long bundleId) {
+            final int idx = Arrays.binarySearch(bundleIds, bundleId);
+            return idx >= 0 ? this : new IndexEntry(path, insert(bundleIds, -idx - 1, bundleId));
+        }
+
+        /**
+         * @return null if no bundle is left
+         */
+        IndexEntry without(long bundleId) {
+            final int idx = Arrays.binarySearch(bundleIds, bundleId);
+            if (idx < 0) return this;
+            return bundleIds.length == 1 ? null : new IndexEntry(path, remove(bundleIds, idx));
+        }
+
+        static long[] insert(long[] values, int idx, long value) {
+            final long[] result = new long[values.length + 1];
+            System.arraycopy(values, 0, result, 0, idx);
+            result[idx] = value;
+            System.arraycopy(values, idx, result, idx + 1, values.length - idx);
+            return result;
+        }
+
+        static long[] remove(long[] values, int idx) {
+            final long[] result = new long[values.length - 1];
+            System.arraycopy(values, 0, result, 0, idx);
+            System.arraycopy(values, idx + 1, result, idx, values.length - idx - 1);
+            return result;
+        }
+    }
+
+    /**
+     * The file or directory a bundle revision can be read from directly, along with what it looked like
+     * when that was found out.
+     */
+    private static final class DirectSource {
+        // null if the bundle has to be asked
+        final File file;
+        final long lastModified;
+        final long length;
+
+        DirectSource(File file) {
+            this.file = file;
+            lastModified = file == null ? 0L : file.lastModified();
+            length = file == null ? 0L : file.length();
+        }
+
+        boolean isCurrent() {
+            return file == null || (file.lastModified() == lastModified && file.length() == length);
+        }
+    }
+
+    /**
+     * Keeps the index up to date as bundles come and go or get updated. Nothing is done till the index
+     * has been asked for.
+     */
+    private class EntriesTracker extends BundleTracker<Bundle> {
+        EntriesTracker() {
+            super(bundleContext, TRACKED_STATES, null);
+        }
+
+        @Override
+        public Bundle addingBundle(Bundle bundle, BundleEvent event) {
+            bundleChanged(bundle);
+            return bundle;
+        }
+
+        @Override
+        public void modifiedBundle(Bundle bundle, BundleEvent event, Bundle object) {
+            if (event != null && event.getType() == BundleEvent.UPDATED) {
+                updatedBundles.add(bundle.getBundleId());
+                bundleChanged(bundle);
+            }
+        }
+
+        @Override
+        public void removedBundle(Bundle bundle, BundleEvent event, Bundle object) {
+            bundleRemoved(bundle);
+            updatedBundles.remove(bundle.getBundleId());
+        }
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser for META-INF/services files.
+ *
+ * The format of service file is specified at
+ * https://docs.oracle.com/en/java/javase/11/docs/api/java.base/java/util/ServiceLoader.html
+ * According to the above spec,
+ * The file contains a list of fully-qualified binary names of
+ * concrete provider classes, one per line.
+ * Space and tab characters surrounding each name,
+ * as well as blank lines, are ignored.
+ * The comment character is '#' ('#', NUMBER SIGN);
+ * on each line all characters following the first comment
+ * character are ignored. The file must be encoded in UTF-8.
+ *
+ * The file is read into a per thread buffer which is reused across calls and lines are found by looking at
+ * the raw bytes. That works for UTF-8, because none of the bytes of a multi byte sequence can be mistaken for
+ * a line terminator, '#', space or tab. Only the provider names themselves are decoded into strings.
+ */
+final class ServiceFileParser {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * Buffers larger than this are not kept around after use.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_BUFFER_SIZE];
+        }
+    };
+
+    private ServiceFileParser() {
+    }
+
+    /**
+     * Reads a single service file and returns the names of the providers in the order they appear.
+     * If the same provider appears multiple times, the list contains only one entry for all of the duplicates.
+     * If a line contains more than one name, only the first one is considered. The stream is closed.
+     *
+     * @return names of providers, empty list if none is found
+     */
+    static List<String> parse(InputStream is) throws IOException {
+        byte[] buf = buffers.get();
+        int length = 0;
+        try {
+            int n;
+            while ((n = is.read(buf, length, buf.length - length)) != -1) {
+                length += n;
+                if (length == buf.length) {
+                    byte[] bigger = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, bigger, 0, length);
+                    buf = bigger;
+                }
+            }
+        } finally {
+            is.close();
+        }
+        if (buf.length <= MAX_RETAINED_BUFFER_SIZE) {
+            buffers.set(buf);
+        }
+        return parse(buf, length);
+    }
+
+    /**
+     * Parses the content of a service file.
+     *
+     * @param buf content of the file encoded in UTF-8
+     * @param length number of valid bytes in the buffer
+     * @return names of providers, empty list if none is found
+     */
+    static List<String> parse(byte[] buf, int length) {
+        List<String> providerNames = new ArrayList<String>(2);
+        int pos = 0;
+        // skip UTF-8 byte order mark, if any
+        if (length >= 3 && buf[0] == (byte) 0xEF && buf[1] == (byte) 0xBB && buf[2] == (byte) 0xBF) {
+            pos = 3;
+        }
+        while (pos < length) {
+            // skip leading white space
+            while (pos < length && (buf[pos] == ' ' || buf[pos] == '\t')) {
+                pos++;
+            }
+            // the name ends at white space, comment or end of line
+            final int start = pos;
+            while (pos < length && !isNameTerminator(buf[pos])) {
+                pos++;
+            }
+            if (pos > start) {
+                final String name = new String(buf, start, pos - start, StandardCharsets.UTF_8);
+                // Service files rarely list more than a handful of providers, so a linear search is cheapest.
+                if (!providerNames.contains(name)) {
+                    providerNames.add(name);
+                }
+            }
+            // ignore rest of the line including any comment and skip the line terminator
+            while (pos < length && buf[pos] != '\n' && buf[pos] != '\r') {
+                pos++;
+            }
+            pos++;
+        }
+        return providerNames;
+    }
+
+    private static boolean isNameTerminator(byte b) {
+        return b == ' ' || b == '\t' || b == '#' || b == '\n' || b == '\r';
+    }
+}
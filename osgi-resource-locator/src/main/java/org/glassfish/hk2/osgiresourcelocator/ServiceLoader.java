@@ -16,6 +16,21 @@
 
 package org.glassfish.hk2.osgiresourcelocator;
 
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
 /**
  * This is a gateway to OSGi bundles as far as META-INF/services files are concerned.
  * Since META-INF/services files are not exportable, clients relying on Java SPI mechanism
@@ -32,9 +47,25 @@ package org.glassfish.hk2.osgiresourcelocator;
  */
 public abstract class ServiceLoader {
     /**
-     * Singleton
+     * Singleton. Volatile, so that a thread looking up providers sees it as soon as it is initialized.
+     */
+    private static volatile ServiceLoader _me;
+
+    /**
+     * Completed when the singleton is initialized, replaced by a new one when it is reset.
+     * Written with the class lock held.
      */
-    private static ServiceLoader _me;
+    private static volatile CompletableFuture<Void> ready = new CompletableFuture<Void>();
+
+    /**
+     * Executor used by the asynchronous lookups, null for the default one.
+     */
+    private static volatile Executor asyncExecutor;
+
+    private static final List<LookupListener> lookupListeners = new CopyOnWriteArrayList<LookupListener>();
+
+    private static final List<ProviderListenerRegistration> providerListeners =
+            new CopyOnWriteArrayList<ProviderListenerRegistration>();
 
     /*package*/ ServiceLoader() {}
 
@@ -42,6 +73,11 @@ public abstract class ServiceLoader {
         if (singleton == null) throw new NullPointerException("Did you intend to call reset()?");
         if (_me != null) throw new IllegalStateException("Already initialzed with [" + _me + "]");
         _me = singleton;
+        ready.complete(null);
+        // listeners added while we were not initialized have not been told about the providers yet
+        for (ProviderListenerRegistration registration : providerListeners) {
+            singleton.updateProviderListener1(registration);
+        }
     }
 
     public static synchronized void reset() {
@@ -49,12 +85,209 @@ public abstract class ServiceLoader {
             throw new IllegalStateException("Not yet initialized");
         }
         _me = null;
+        ready = new CompletableFuture<Void>();
+    }
+
+    /**
+     * Returns a future which completes when this class gets initialized, i.e., when lookups start finding providers
+     * of OSGi bundles. Useful for code which may run before the bundle activator of this module.
+     *
+     * @return a future which is already completed if this class has been initialized. It never completes in a
+     * non-OSGi environment.
+     */
+    public static CompletableFuture<Void> whenReady() {
+        // callers must not be able to complete ours
+        return ready.copy();
+    }
+
+    /**
+     * Waits until this class gets initialized or the timeout elapses, whichever comes first.
+     *
+     * @return true if this class has been initialized, false if the timeout elapsed before that
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public static boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return await(ready, timeout, unit);
+    }
+
+    /*package*/ static boolean await(CompletableFuture<Void> future, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        try {
+            future.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // we never complete it exceptionally
+            throw new IllegalStateException(e);
+        }
     }
 
     public interface ProviderFactory<T> {
         T make(Class providerClass, Class<T> serviceClass) throws Exception;
     }
 
+    /**
+     * Gets told about the work done by lookups, e.g., to collect metrics or to trace slow lookups.
+     * Listeners are called by the thread doing the work while it is doing it, so they must be cheap and
+     * must not look up services themselves. Exceptions thrown by listeners are ignored.
+     * All methods do nothing by default.
+     *
+     * @see #addLookupListener
+     */
+    public interface LookupListener {
+        /**
+         * Called for every lookup of provider classes or instances.
+         *
+         * @param hit true if the lookup was answered from what is already known about the service,
+         * false if provider classes had to be loaded
+         */
+        default void lookedUp(Class<?> serviceClass, boolean hit) {
+        }
+
+        /**
+         * Called whenever a provider class has been loaded, or failed to load, on behalf of a lookup.
+         */
+        default void providerClassLoaded(Class<?> serviceClass, String providerName, long nanos) {
+        }
+
+        /**
+         * Called whenever a provider factory has been asked to make a provider instance.
+         */
+        default void providerInstantiated(Class<?> serviceClass, Class<?> providerClass, long nanos) {
+        }
+
+        /**
+         * Called whenever the service files of a bundle have been read, or taken from the persistent cache.
+         */
+        default void bundleScanned(long bundleId, long nanos) {
+        }
+    }
+
+    public static void addLookupListener(LookupListener listener) {
+        if (listener == null) throw new NullPointerException();
+        lookupListeners.add(listener);
+    }
+
+    public static void removeLookupListener(LookupListener listener) {
+        lookupListeners.remove(listener);
+    }
+
+    /*package*/ static List<LookupListener> getLookupListeners() {
+        return lookupListeners;
+    }
+
+    /**
+     * Gets told when providers of a service come and go as bundles are installed, updated and uninstalled,
+     * so that a cache of providers can be kept up to date without looking them up again and again.
+     * A provider class is only reported if it is compatible with the service class the listener has been
+     * added for, just like with {@link #lookupProviderClasses(Class)}. A provider whose class stays the same across
+     * a change, e.g., because its bundle merely got resolved, is not reported.
+     *
+     * Calls to a listener are made one at a time, in the order the changes have happened, by the thread
+     * applying the bundle events, so listeners should hand anything expensive off to another thread.
+     * Exceptions thrown by listeners are ignored.
+     *
+     * @see #addProviderListener
+     */
+    public interface ProviderListener {
+        /**
+         * Called with the providers of the service known when the listener is added, and later with any
+         * provider which shows up.
+         *
+         * @param providerClasses provider classes in the order a lookup would return them
+         */
+        void providersAdded(Class<?> serviceClass, List<Class> providerClasses);
+
+        /**
+         * Called with providers previously reported as added which are gone, e.g., because their bundle has been
+         * updated or uninstalled. An updated bundle has its old providers removed before its new ones are added.
+         */
+        void providersRemoved(Class<?> serviceClass, List<Class> providerClasses);
+    }
+
+    /**
+     * Adds a listener which gets told about changes to the providers of the given service. It is told about
+     * the current providers right away, if this class has been initialized, else as soon as it is. When this
+     * class gets reset, i.e., when the bundle of this class stops, all providers are reported as removed.
+     */
+    public static void addProviderListener(Class<?> serviceClass, ProviderListener listener) {
+        if (serviceClass == null || listener == null) throw new NullPointerException();
+        final ProviderListenerRegistration registration = new ProviderListenerRegistration(serviceClass, listener);
+        providerListeners.add(registration);
+        final ServiceLoader me = _me;
+        if (me != null) me.updateProviderListener1(registration);
+    }
+
+    public static void removeProviderListener(Class<?> serviceClass, ProviderListener listener) {
+        for (ProviderListenerRegistration registration : providerListeners) {
+            if (registration.serviceClass == serviceClass && registration.listener == listener) {
+                registration.removed = true;
+                providerListeners.remove(registration);
+                return;
+            }
+        }
+    }
+
+    /*package*/ static List<ProviderListenerRegistration> getProviderListeners() {
+        return providerListeners;
+    }
+
+    /**
+     * A {@link ProviderListener} along with what it has been told so far. The implementation works out
+     * what has changed since then with the registration locked.
+     */
+    /*package*/ static final class ProviderListenerRegistration {
+        final Class<?> serviceClass;
+        final ProviderListener listener;
+
+        /*
+         * Providers reported as added, keyed by the implementation's record of the provider. A null value
+         * stands for a provider which is not reported because its class can't be loaded or is not compatible.
+         */
+        final Map<Object, Class> reported = new IdentityHashMap<Object, Class>();
+
+        // the implementation's providers of the service when the listener was last brought up to date
+        Object lastSeen;
+
+        volatile boolean removed;
+
+        private ProviderListenerRegistration(Class<?> serviceClass, ProviderListener listener) {
+            this.serviceClass = serviceClass;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Decides whether {@link #lookupProviderInstances} creates new provider instances every time it is called.
+     */
+    public enum ProviderScope {
+        /**
+         * Every lookup creates new provider instances. This is the default.
+         */
+        PROTOTYPE,
+
+        /**
+         * Provider instances are created once and then shared by all lookups of the same service class, until
+         * the bundle containing the provider is updated or uninstalled. The instance is created by the factory
+         * supplied by whichever lookup happens to need it first.
+         */
+        SINGLETON
+    }
+
+    /**
+     * Sets the scope used by lookups of the given service class which don't specify one.
+     * Has no effect outside OSGi.
+     *
+     * @param serviceClass type of service
+     * @param scope scope to be used, null to go back to the default, {@link ProviderScope#PROTOTYPE}
+     */
+    public static void setProviderScope(Class<?> serviceClass, ProviderScope scope) {
+        final ServiceLoader me = _me;
+        if (me == null) return;
+        me.setProviderScope1(serviceClass, scope);
+    }
+
     /**
      * Calling this method is equivalent to calling {@link #lookupProviderInstances(Class, ProviderFactory)}
      * with a null factory object.
@@ -68,13 +301,53 @@ public abstract class ServiceLoader {
     /**
      * @param serviceClass type of service requested
      * @param factory ProviderFactory used to instantiate provider instance from a provider class. If null is supplied,
-     * it calls Class.newInstance to obtain a provider instance from provider class.
+     * provider classes which implement or extend the service class are instantiated by invoking their public no-arg
+     * constructor through a method handle which is looked up once per class, and other provider classes are skipped.
+     * A provider whose constructor throws an exception, or which does not have an accessible no-arg constructor,
+     * is skipped as well, and the exception is printed.
      * @param <T>
-     * @return provider instances implementing the given service class. 
+     * @return provider instances implementing the given service class. Provider classes are loaded and instantiated
+     * only when iteration reaches them; instances created by one iteration are returned by later iterations as well.
      */
     public static <T> Iterable<? extends T> lookupProviderInstances(Class<T> serviceClass, ProviderFactory<T> factory) {
-        if (_me == null) return null;
-        return _me.lookupProviderInstances1(serviceClass, factory);
+        return lookupProviderInstances(serviceClass, factory, null);
+    }
+
+    /**
+     * Same as {@link #lookupProviderInstances(Class, ProviderFactory)}, but lets the caller decide whether
+     * provider instances are shared with other lookups.
+     *
+     * @param serviceClass type of service requested
+     * @param factory ProviderFactory used to instantiate provider instance from a provider class. If null is supplied,
+     * provider classes are instantiated as described at {@link #lookupProviderInstances(Class, ProviderFactory)}.
+     * @param scope scope of the returned instances. If null is supplied, the scope set for the service class using
+     * {@link #setProviderScope} is used.
+     * @param <T>
+     * @return provider instances implementing the given service class.
+     */
+    public static <T> Iterable<? extends T> lookupProviderInstances(Class<T> serviceClass, ProviderFactory<T> factory,
+                                                                    ProviderScope scope) {
+        final ServiceLoader me = _me;
+        if (me == null) return null;
+        return me.lookupProviderInstances1(serviceClass, factory, scope);
+    }
+
+    /**
+     * Same as {@link #lookupProviderInstances(Class, ProviderFactory, ProviderScope)}, but only considers
+     * providers which belong to the class space of the caller as far as the service class is concerned, i.e.,
+     * providers of the bundle the caller gets the service package from and of the bundles which get the package
+     * from there too. This is cheaper than looking at every provider and checking if it is compatible.
+     * If that can't be worked out, e.g., because the caller is not defined by a bundle or the service package
+     * comes from the boot class path, this is the same as the lookup without a caller.
+     *
+     * @param caller class on behalf of which the lookup is done, typically the class calling this method
+     * @see #lookupProviderClasses(Class, Class)
+     */
+    public static <T> Iterable<? extends T> lookupProviderInstances(Class<T> serviceClass, ProviderFactory<T> factory,
+                                                                    ProviderScope scope, Class<?> caller) {
+        final ServiceLoader me = _me;
+        if (me == null) return null;
+        return me.lookupProviderInstances1(serviceClass, factory, scope, caller);
     }
 
     /**
@@ -100,16 +373,125 @@ public abstract class ServiceLoader {
      * com.acme.jaxb.JAXBContextFactory and see if that's same as supplied JAXBContext.class. If they are same,
      * we return com.acme.jaxb.JAXBContextFactory, else we don't. In this example, we won't.
      *
+     * Classes are returned in ascending order of the Provider-Priority manifest header of the bundles containing
+     * them, then in ascending order of bundle id and then in the order they appear in the service file.
+     * {@link #lookupProviderInstances} returns instances in the same order.
+     *
      * @param serviceClass type of service requested
      * @param <T>
      * @return classes corresponding to entries in META-INF/services file for the service class.
      */
     public static <T> Iterable<Class> lookupProviderClasses(Class<T> serviceClass) {
-        if (_me == null) return null;
-        return _me.lookupProviderClasses1(serviceClass);
+        final ServiceLoader me = _me;
+        if (me == null) return null;
+        return me.lookupProviderClasses1(serviceClass);
+    }
+
+    /**
+     * Same as {@link #lookupProviderClasses(Class)}, but only returns providers which belong to the class space
+     * of the caller as far as the service class is concerned. Only bundles wired to the same source of
+     * the service package as the caller are looked at, so providers of bundles which would import the package
+     * dynamically but have not done so yet are not found.
+     *
+     * @param serviceClass type of service requested
+     * @param caller class on behalf of which the lookup is done, typically the class calling this method
+     * @param <T>
+     * @return classes corresponding to entries in META-INF/services file for the service class.
+     * @see #lookupProviderInstances(Class, ProviderFactory, ProviderScope, Class)
+     */
+    public static <T> Iterable<Class> lookupProviderClasses(Class<T> serviceClass, Class<?> caller) {
+        final ServiceLoader me = _me;
+        if (me == null) return null;
+        return me.lookupProviderClasses1(serviceClass, caller);
+    }
+
+    /**
+     * Asynchronous variant of {@link #lookupProviderClasses(Class)}. Provider classes are loaded by the executor
+     * set using {@link #setAsyncExecutor}, so that independent services can be looked up concurrently.
+     *
+     * @param serviceClass type of service requested
+     * @param <T>
+     * @return future completed with the classes {@link #lookupProviderClasses(Class)} would return, with null in
+     * a non-OSGi environment.
+     */
+    public static <T> CompletableFuture<Iterable<Class>> lookupProviderClassesAsync(final Class<T> serviceClass) {
+        final ServiceLoader me = _me;
+        if (me == null) return CompletableFuture.completedFuture(null);
+        return CompletableFuture.supplyAsync(new Supplier<Iterable<Class>>() {
+            public Iterable<Class> get() {
+                return me.lookupProviderClasses1(serviceClass);
+            }
+        }, getAsyncExecutor());
+    }
+
+    /**
+     * Asynchronous variant of {@link #lookupProviderInstances(Class, ProviderFactory)}. Unlike the synchronous
+     * variant, all provider classes are loaded and instantiated by the executor set using
+     * {@link #setAsyncExecutor} before the future completes, so iterating the result does not do any work.
+     *
+     * @param serviceClass type of service requested
+     * @param factory ProviderFactory used to instantiate provider instance from a provider class. If null is supplied,
+     * provider classes are instantiated as described at {@link #lookupProviderInstances(Class, ProviderFactory)}.
+     * Providers which fail to be instantiated are skipped, they don't make the future complete exceptionally.
+     * @param <T>
+     * @return future completed with the provider instances, with null in a non-OSGi environment.
+     */
+    public static <T> CompletableFuture<Iterable<? extends T>> lookupProviderInstancesAsync(
+            final Class<T> serviceClass, final ProviderFactory<T> factory) {
+        final ServiceLoader me = _me;
+        if (me == null) return CompletableFuture.completedFuture(null);
+        return CompletableFuture.supplyAsync(new Supplier<Iterable<? extends T>>() {
+            public Iterable<? extends T> get() {
+                final Iterable<? extends T> instances = me.lookupProviderInstances1(serviceClass, factory, null);
+                // instances are remembered by the iterable, so walking it once does all the work up front
+                for (Iterator<? extends T> it = instances.iterator(); it.hasNext(); ) {
+                    it.next();
+                }
+                return instances;
+            }
+        }, getAsyncExecutor());
+    }
+
+    /**
+     * Sets the executor used by {@link #lookupProviderClassesAsync} and {@link #lookupProviderInstancesAsync}.
+     * By default, every lookup runs in a virtual thread of its own if the runtime supports them, else in the
+     * common fork join pool.
+     *
+     * @param executor executor to use, null to go back to the default one
+     */
+    public static void setAsyncExecutor(Executor executor) {
+        asyncExecutor = executor;
+    }
+
+    private static Executor getAsyncExecutor() {
+        final Executor executor = asyncExecutor;
+        return executor != null ? executor : DefaultAsyncExecutor.INSTANCE;
+    }
+
+    /**
+     * Holder of the default executor of asynchronous lookups, created when it is used for the first time.
+     */
+    private static class DefaultAsyncExecutor {
+        private static final Executor INSTANCE = create();
+
+        private static Executor create() {
+            try {
+                // Executors.newVirtualThreadPerTaskExecutor() is not there before Java 21
+                final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (Executor) factory.invoke(null);
+            } catch (Exception e) {
+                return ForkJoinPool.commonPool();
+            }
+        }
     }
 
-    /*package*/ abstract <T> Iterable<? extends T> lookupProviderInstances1(Class<T> serviceType, ProviderFactory<T> factory);
+    /*package*/ abstract <T> Iterable<? extends T> lookupProviderInstances1(Class<T> serviceType, ProviderFactory<T> factory,
+                                                                           ProviderScope scope);
+    /*package*/ abstract <T> Iterable<? extends T> lookupProviderInstances1(Class<T> serviceType, ProviderFactory<T> factory,
+                                                                           ProviderScope scope, Class<?> caller);
+    /*package*/ abstract <T> Iterable<Class> lookupProviderClasses1(Class<T> serviceType, Class<?> caller);
+    /*package*/ abstract void setProviderScope1(Class<?> serviceType, ProviderScope scope);
     /*package*/ abstract <T> Iterable<Class> lookupProviderClasses1(Class<T> serviceType);
+    /*package*/ abstract void updateProviderListener1(ProviderListenerRegistration registration);
 
 }
@@ -17,27 +17,226 @@
 package org.glassfish.hk2.osgiresourcelocator;
 
 import org.osgi.framework.*;
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
 
+import javax.management.JMException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Sanjeeb.Sahoo@Sun.COM
  */
 public final class ServiceLoaderImpl extends org.glassfish.hk2.osgiresourcelocator.ServiceLoader {
 
-    private ReadWriteLock rwLock = new ReentrantReadWriteLock();
-    private BundleListener bundleTracker;
+    /**
+     * Name of the framework property specifying how many threads are used to read service files of bundles
+     * which are already installed when we start. Defaults to 1, i.e., they are read by the activator thread.
+     */
+    public static final String SCAN_THREADS_PROPERTY = "org.glassfish.hk2.osgiresourcelocator.scanThreads";
+
+    /**
+     * Name of the framework property which, when set to true, makes us remember the contents of service files
+     * in our bundle's data area, so that they are not read again after a restart unless the bundle has changed.
+     */
+    public static final String PERSISTENT_CACHE_PROPERTY = "org.glassfish.hk2.osgiresourcelocator.persistentCache";
+
+    private static final String PERSISTENT_CACHE_FILE = "providers.cache";
+
+    /**
+     * Name of the framework property specifying how many milliseconds bundle events are collected before
+     * they are applied together. Defaults to 0, i.e., events are applied as soon as the previous batch is done.
+     */
+    public static final String EVENT_FLUSH_DELAY_PROPERTY = "org.glassfish.hk2.osgiresourcelocator.eventFlushDelay";
+
+    /**
+     * Name of the manifest header by which a bundle can give its providers a priority. The value is an integer;
+     * providers of bundles with a lower value come first. Bundles without the header have priority 0.
+     * Providers of the same priority are ordered by bundle id and then by their order in the service file.
+     */
+    public static final String PROVIDER_PRIORITY_HEADER = "Provider-Priority";
+
+    /**
+     * States in which bundles are considered to provide services. Bundles which are merely installed are included,
+     * because loading a class from such a bundle makes the framework try to resolve it, which lookups have
+     * always relied upon.
+     */
+    private static final int TRACKED_STATES =
+            Bundle.INSTALLED | Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING;
+
+    private ProvidersTracker bundleTracker;
     private BundleContext bundleContext;
-    private ProvidersList providersList = new ProvidersList();
+
+    /**
+     * Applies queued bundle events, see {@link #flushBundleEvents()}.
+     */
+    private ScheduledExecutorService eventExecutor;
+
+    private long eventFlushDelay;
+
+    /*
+     * Bundles which have seen an event that is not yet applied, keyed by bundle id, guarded by itself.
+     * Several events of the same bundle result in one entry, as the bundle's state at the time the batch
+     * is applied is all that matters.
+     */
+    private final Map<Long, Bundle> pendingBundles = new LinkedHashMap<Long, Bundle>();
+
+    /*
+     * Ids of bundles which have merely been resolved or unresolved since the last flush, guarded by pendingBundles.
+     * Their service files are still the same, so they only get fresh entries, see ProvidersTracker.
+     */
+    private final Set<Long> rewiredBundles = new LinkedHashSet<Long>();
+
+    // guarded by pendingBundles
+    private boolean flushScheduled;
+
+    /*
+     * Whether bundle events are being collected, i.e., between trackBundles() and stopTracking(),
+     * guarded by pendingBundles.
+     */
+    private boolean tracking;
+
+    // number of flushes in progress, guarded by pendingBundles
+    private int flushing;
+
+    /*
+     * Held by a flush from taking its batch till it has been applied, so that flushes don't compete for
+     * the same bundles and their snapshots are published in the order the batches were taken.
+     */
+    private final Object flushLock = new Object();
+
+    /*
+     * Number of times in a row the service files of a bundle could not be read, keyed by bundle id,
+     * guarded by pendingBundles.
+     */
+    private final Map<Long, Integer> readFailures = new HashMap<Long, Integer>();
+
+    /**
+     * How often reading the service files of a bundle is retried before we give up till its next event.
+     */
+    private static final int MAX_READ_RETRIES = 10;
+
+    private static final long READ_RETRY_DELAY = 100; // ms
+
+    /**
+     * Reads the service files of several bundles at once, null if they are read one after the other.
+     * Threads go away when idle, as mostly the initial scan and large batches of events make use of them.
+     */
+    private ExecutorService scanExecutor;
+
+    private static final long SCAN_THREAD_KEEP_ALIVE = 60; // s
+
+    /**
+     * Persistent cache of service files, null if not enabled.
+     */
+    private ProvidersCache providersCache;
+
+    /**
+     * Current snapshot of providers. A snapshot is never modified once published; changes build a new snapshot
+     * and swap it in atomically, so lookups never block and never see a partially applied change.
+     */
+    private final AtomicReference<ProvidersList> providersList = new AtomicReference<ProvidersList>(new ProvidersList());
+
+    /*
+     * Whether provider listeners are brought up to date when providers change. Cleared when we stop tracking,
+     * after which listeners are told that all providers are gone.
+     */
+    private volatile boolean providerListenersEnabled;
+
+    /**
+     * Resolved provider classes per service class. Using a ClassValue means the cache is keyed by identity
+     * of the caller's service class, yet it does not prevent that class or its loader from being collected.
+     */
+    private final ClassValue<ProviderClassesCache> providerClassesCache = new ClassValue<ProviderClassesCache>() {
+        @Override
+        protected ProviderClassesCache computeValue(Class<?> type) {
+            final ProviderClassesCache cache = new ProviderClassesCache();
+            synchronized (providerClassesCaches) {
+                Set<ProviderClassesCache> caches = providerClassesCaches.get(type.getName());
+                if (caches == null) {
+                    caches = Collections.newSetFromMap(new WeakHashMap<ProviderClassesCache, Boolean>());
+                    providerClassesCaches.put(type.getName(), caches);
+                }
+                caches.add(cache);
+            }
+            return cache;
+        }
+    };
+
+    /*
+     * The above caches by service name, so that a flush can drop the provider classes resolved for the services
+     * it changes right away. Otherwise classes of updated and uninstalled bundles, and with them their class
+     * loaders, would be kept till the service is looked up again, which may be never. The caches are weakly
+     * referenced, as they belong to their service classes. Guarded by itself.
+     */
+    private final Map<String, Set<ProviderClassesCache>> providerClassesCaches =
+            new HashMap<String, Set<ProviderClassesCache>>();
+
+    /**
+     * Verdicts of {@link #isCompatible} per service class and provider class loader, so that resolving providers
+     * again does not make the framework walk the wiring of the provider's bundle for each of them. The class loaders
+     * are weakly referenced. What a class loader sees may change when bundles get resolved, unresolved, updated or
+     * uninstalled, so the whole cache is replaced whenever that happens.
+     */
+    private volatile ClassValue<Map<ClassLoader, Boolean>> compatibilityVerdicts = newCompatibilityVerdicts();
+
+    /**
+     * {@link WiringView}s per caller bundle revision and service package, see {@link #getWiringView}.
+     * Like the compatibility verdicts, they are thrown away whenever the wiring may have changed, which also
+     * happens whenever a revision goes away, so holding on to the revisions till then is fine.
+     */
+    private volatile ConcurrentMap<BundleRevision, ConcurrentMap<String, WiringView>> wiringViews =
+            new ConcurrentHashMap<BundleRevision, ConcurrentMap<String, WiringView>>();
+
+    /**
+     * Stands for a missing view in {@link #wiringViews}, which can't hold null.
+     */
+    private static final WiringView NO_WIRING_VIEW = new WiringView();
+
+    private final ServiceLoaderStats stats = new ServiceLoaderStats();
+
+    private static final String DEBUG_PROPERTY = "org.glassfish.hk2.osgiresourcelocator.debug";
+
+    private static final String SERVICE_LOCATION = "META-INF/services";
+
+    private static final String VERSIONS_LOCATION = "META-INF/versions/";
+
+    private static final String MULTI_RELEASE_HEADER = "Multi-Release";
+
+    /*package*/ static final int JAVA_FEATURE_VERSION = Runtime.version().feature();
+
+    // read once, as debug() is called on hot paths
+    private final boolean debugEnabled;
 
 //    /**
 //     * Map of service type to bundles providing the service
@@ -53,6 +252,7 @@ public final class ServiceLoaderImpl extends org.glassfish.hk2.osgiresourcelocat
             throw new RuntimeException("There is no bundle context available yet. " +
                     "Instatiate this class in STARTING or ACTIVE state only");
         }
+        debugEnabled = Boolean.valueOf(bundleContext.getProperty(DEBUG_PROPERTY));
     }
 
     private BundleContext getBundleContextSecured(final Bundle bundle) {
@@ -71,67 +271,464 @@ public final class ServiceLoaderImpl extends org.glassfish.hk2.osgiresourcelocat
         assert (bundleTracker == null);
         /*
          * The reason for separating this code from constructor is that we don't want to
-         * leak a partially constructed this reference via inner class called BundleTracker.
-         * That would be a problem since BundleTracker receives callbacks from other threads.
+         * leak a partially constructed this reference via inner class called ProvidersTracker.
+         * That would be a problem since ProvidersTracker receives callbacks from other threads.
          */
 
-        // First register a listener and then iterate over existing bundles
-        bundleTracker = new BundleTracker();
-        bundleContext.addBundleListener(bundleTracker);
-        for (Bundle bundle : bundleContext.getBundles()) {
-            addProviders(bundle);
+        try {
+            stats.register();
+        } catch (JMException e) {
+            debug("Unable to register " + ServiceLoaderStatsMXBean.OBJECT_NAME, e);
+        }
+        openProvidersCache();
+        eventFlushDelay = getEventFlushDelay();
+        final int scanThreads = getScanThreads();
+        if (scanThreads > 1) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(scanThreads, scanThreads,
+                    SCAN_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new DaemonThreadFactory("osgi-resource-locator-scan"));
+            executor.allowCoreThreadTimeOut(true);
+            scanExecutor = executor;
+        }
+        eventExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("osgi-resource-locator-events"));
+
+        providerListenersEnabled = true;
+        synchronized (pendingBundles) {
+            tracking = true;
+            // keeps events from scheduling a flush of their own till we have taken the initial batch
+            flushScheduled = true;
+        }
+        // Opening the tracker queues all bundles which are already there. Apply them right here in one batch,
+        // so that their providers are known by the time we return, just like they would be had we been started
+        // earlier.
+        bundleTracker = new ProvidersTracker();
+        bundleTracker.open();
+        flushBundleEvents();
+        try {
+            awaitQuiescence();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        storeProvidersCache();
+    }
+
+    /**
+     * Stops tracking bundles. Bundle events which are still queued are discarded.
+     */
+    public void stopTracking() {
+        if (bundleTracker == null) return;
+        // Stop collecting events first. Closing the tracker reports all bundles as removed, although they
+        // are still there, and we don't want to read all of them again on the way out.
+        synchronized (pendingBundles) {
+            tracking = false;
+            pendingBundles.clear();
+            rewiredBundles.clear();
+            readFailures.clear();
+            flushScheduled = false;
+            pendingBundles.notifyAll();
+        }
+        eventExecutor.shutdownNow();
+        if (scanExecutor != null) {
+            scanExecutor.shutdownNow();
+            scanExecutor = null;
+        }
+        bundleTracker.close();
+        providerListenersEnabled = false;
+        for (ServiceLoader.ProviderListenerRegistration registration : ServiceLoader.getProviderListeners()) {
+            retractProviders(registration);
+        }
+        storeProvidersCache();
+        try {
+            stats.unregister();
+        } catch (JMException e) {
+            debug("Unable to unregister " + ServiceLoaderStatsMXBean.OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Waits till all bundle events received so far have been applied. This is mostly useful for tests,
+     * as bundle events are applied asynchronously.
+     */
+    public void awaitQuiescence() throws InterruptedException {
+        synchronized (pendingBundles) {
+            while (flushScheduled || flushing > 0) {
+                pendingBundles.wait();
+            }
         }
     }
 
-    /*package*/ <T> Iterable<? extends T> lookupProviderInstances1(Class<T> serviceClass, ProviderFactory<T> factory) {
-        if (factory == null) {
-            factory = new DefaultFactory<T>();
+    private long getEventFlushDelay() {
+        final String delay = bundleContext.getProperty(EVENT_FLUSH_DELAY_PROPERTY);
+        if (delay == null) return 0;
+        try {
+            return Math.max(0, Long.parseLong(delay.trim()));
+        } catch (NumberFormatException e) {
+            debug("Ignoring invalid value of " + EVENT_FLUSH_DELAY_PROPERTY + ": " + delay);
+            return 0;
         }
-        List<T> providers = new ArrayList<T>();
-        for (Class c : lookupProviderClasses1(serviceClass)) {
-            try {
-                final T providerInstance = factory.make(c, serviceClass);
-                if (providerInstance != null) {
-                    providers.add(providerInstance);
-                } else {
-                    debug(factory + " returned null provider instance!!!");
+    }
+
+    private void openProvidersCache() {
+        if (!Boolean.valueOf(bundleContext.getProperty(PERSISTENT_CACHE_PROPERTY))) return;
+        final File file = bundleContext.getDataFile(PERSISTENT_CACHE_FILE);
+        if (file == null) {
+            debug("Persistent cache is not available as the framework does not provide file system support");
+            return;
+        }
+        try {
+            providersCache = ProvidersCache.load(file);
+        } catch (IOException e) {
+            debug("Ignoring unusable persistent cache " + file, e);
+            providersCache = ProvidersCache.empty();
+        }
+    }
+
+    private void storeProvidersCache() {
+        if (providersCache == null) return;
+        final File file = bundleContext.getDataFile(PERSISTENT_CACHE_FILE);
+        try {
+            providersCache.store(file);
+        } catch (IOException e) {
+            debug("Unable to store persistent cache " + file, e);
+        }
+    }
+
+    /**
+     * @return number of threads to be used to read service files when many bundles show up at once,
+     * e.g. those installed before we started, 1 meaning they are read one after another by the calling thread.
+     */
+    private int getScanThreads() {
+        final String scanThreads = bundleContext.getProperty(SCAN_THREADS_PROPERTY);
+        if (scanThreads == null) return 1;
+        try {
+            return Math.max(1, Integer.parseInt(scanThreads.trim()));
+        } catch (NumberFormatException e) {
+            debug("Ignoring invalid value of " + SCAN_THREADS_PROPERTY + ": " + scanThreads);
+            return 1;
+        }
+    }
+
+    /**
+     * Reads service files of the given bundles, concurrently if configured so.
+     *
+     * @param failed collects bundles whose service files could not be read, null if they are to be ignored
+     * @return providers of those bundles which have any, in no particular order
+     */
+    private List<ProvidersPerBundle> loadProviders(List<Bundle> bundles, final Collection<Bundle> failed) {
+        final List<ProvidersPerBundle> result = new ArrayList<ProvidersPerBundle>(bundles.size());
+        final ExecutorService executor = scanExecutor;
+        if (executor == null || bundles.size() <= 1) {
+            for (Bundle bundle : bundles) {
+                final ProvidersPerBundle providers = loadProvidersIfPresent(bundle, failed);
+                if (providers != null) {
+                    result.add(providers);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
+            return result;
+        }
+        try {
+            final List<Callable<ProvidersPerBundle>> tasks = new ArrayList<Callable<ProvidersPerBundle>>(bundles.size());
+            for (final Bundle bundle : bundles) {
+                tasks.add(new Callable<ProvidersPerBundle>() {
+                    public ProvidersPerBundle call() {
+                        return loadProvidersIfPresent(bundle, failed);
+                    }
+                });
+            }
+            for (Future<ProvidersPerBundle> future : executor.invokeAll(tasks)) {
+                try {
+                    final ProvidersPerBundle providers = future.get();
+                    if (providers != null) {
+                        result.add(providers);
+                    }
+                } catch (ExecutionException e) {
+                    debug("Unable to read service files", e.getCause());
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading service files", e);
         }
-        return providers;
     }
 
-    /*package*/ <T> Iterable<Class> lookupProviderClasses1(Class<T> serviceClass) {
-        List<Class> providerClasses = new ArrayList<Class>();
-        rwLock.readLock().lock();
+    /**
+     * @return providers of the given bundle, null if it does not have any, it is gone or it could not be read
+     */
+    private ProvidersPerBundle loadProvidersIfPresent(Bundle bundle, Collection<Bundle> failed) {
         try {
-            final String serviceName = serviceClass.getName();
-            for (ProvidersPerBundle providersPerBundle : providersList.getAllProviders()) {
-                final Bundle bundle = bundleContext.getBundle(providersPerBundle.getBundleId());
-                if (bundle == null) {
-                    // bundle may have been uninstalled
-                    continue;
+            return loadProviders(bundle);
+        } catch (IllegalStateException e) {
+            // uninstalled while we were reading it
+            debug("Bundle = " + bundle + " is gone", e);
+            return null;
+        } catch (RuntimeException e) {
+            // Events are delivered while the framework is still busy with the bundle, e.g., updating it,
+            // and some frameworks fail to hand out entries in the meantime.
+            debug("Unable to read service files of bundle = " + bundle, e);
+            if (failed != null) {
+                synchronized (failed) {
+                    failed.add(bundle);
                 }
-                final List<String> providerNames = providersPerBundle.getServiceToProvidersMap().get(serviceName);
-                if (providerNames == null) {
-                    continue;
+            }
+            return null;
+        }
+    }
+
+    /*package*/ <T> Iterable<? extends T> lookupProviderInstances1(Class<T> serviceClass, ProviderFactory<T> factory,
+                                                                  ProviderScope scope) {
+        final List<ProviderEntry> providerEntries = providersList.get().getProviders(serviceClass.getName());
+        if (providerEntries.isEmpty()) {
+            stats.lookedUp(serviceClass, true);
+            return Collections.<T>emptyList();
+        }
+        factory = new TimedFactory<T>(factory != null ? factory : new DefaultFactory<T>());
+        if (scope == null) {
+            scope = providerClassesCache.get(serviceClass).getScope();
+        }
+        return new ProviderInstances<T>(serviceClass, factory, scope, providerIterator(serviceClass, providerEntries));
+    }
+
+    /*package*/ void setProviderScope1(Class<?> serviceClass, ProviderScope scope) {
+        providerClassesCache.get(serviceClass).setScope(scope != null ? scope : ProviderScope.PROTOTYPE);
+    }
+
+    /*package*/ <T> Iterable<Class> lookupProviderClasses1(Class<T> serviceClass) {
+        final List<ProviderEntry> providerEntries = providersList.get().getProviders(serviceClass.getName());
+        if (providerEntries.isEmpty()) {
+            // Optional services without any provider are looked up a lot. Answer them straight from the index,
+            // without allocating anything or setting up a per class cache which would never be used.
+            stats.lookedUp(serviceClass, true);
+            return Collections.<Class>emptyList();
+        }
+        return resolveProviders(serviceClass, providerEntries).getProviderClasses();
+    }
+
+    /*package*/ <T> Iterable<? extends T> lookupProviderInstances1(Class<T> serviceClass, ProviderFactory<T> factory,
+                                                                  ProviderScope scope, Class<?> caller) {
+        final List<ProviderEntry> providerEntries = providersList.get().getProviders(serviceClass.getName());
+        if (providerEntries.isEmpty()) {
+            stats.lookedUp(serviceClass, true);
+            return Collections.<T>emptyList();
+        }
+        final WiringView view = getWiringView(serviceClass, caller);
+        if (view == null) {
+            return lookupProviderInstances1(serviceClass, factory, scope);
+        }
+        factory = new TimedFactory<T>(factory != null ? factory : new DefaultFactory<T>());
+        if (scope == null) {
+            scope = providerClassesCache.get(serviceClass).getScope();
+        }
+        return new ProviderInstances<T>(serviceClass, factory, scope,
+                resolveProviders(serviceClass, providerEntries, view).getProviders().iterator());
+    }
+
+    /*package*/ <T> Iterable<Class> lookupProviderClasses1(Class<T> serviceClass, Class<?> caller) {
+        final List<ProviderEntry> providerEntries = providersList.get().getProviders(serviceClass.getName());
+        if (providerEntries.isEmpty()) {
+            stats.lookedUp(serviceClass, true);
+            return Collections.<Class>emptyList();
+        }
+        final WiringView view = getWiringView(serviceClass, caller);
+        if (view == null) {
+            return resolveProviders(serviceClass, providerEntries).getProviderClasses();
+        }
+        return resolveProviders(serviceClass, providerEntries, view).getProviderClasses();
+    }
+
+    /**
+     * Same as {@link #resolveProviders(Class, List)}, but only considers providers of bundles in the given view.
+     * A provider class defined by one of those bundles is known to see the same service class as the caller,
+     * so it is not checked for compatibility.
+     */
+    private ResolvedProviderClasses resolveProviders(Class<?> serviceClass, List<ProviderEntry> providerEntries,
+                                                     WiringView view) {
+        final ResolvedProviderClasses resolved = view.getResolved(serviceClass.getName());
+        if (resolved != null && resolved.getProviderEntries() == providerEntries) {
+            stats.lookedUp(serviceClass, true);
+            return resolved;
+        }
+        stats.lookedUp(serviceClass, false);
+        final List<ResolvedProvider> providers = new ArrayList<ResolvedProvider>();
+        boolean complete = true;
+        for (ProviderEntry providerEntry : providerEntries) {
+            if (!view.contains(providerEntry.getBundleId())) {
+                continue;
+            }
+            try {
+                final Class providerClass = loadProviderClass(providerEntry, serviceClass);
+                if (providerClass != null && (view.sees(providerClass) || isCompatible(providerClass, serviceClass))) {
+                    providers.add(new ResolvedProvider(providerEntry, providerClass));
                 }
-                for (String providerName : providerNames) {
-                    try {
-                        final Class providerClass = loadClassSecured(bundle, providerName);
-                        if (isCompatible(providerClass, serviceClass)) {
-                            providerClasses.add(providerClass);
-                        }
-                    } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
-                    }
+            } catch (RuntimeException e) {
+                complete = false;
+            }
+        }
+        final ResolvedProviderClasses result = new ResolvedProviderClasses(providerEntries, providers);
+        if (complete) {
+            view.setResolved(serviceClass.getName(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the bundles which get the package of the service class from the same place as the calling class does.
+     * It is worked out from the wiring of the revision of the bundle which defined the calling class and then
+     * cached per revision and package till the wiring changes.
+     *
+     * @return null if the calling class is not defined by a bundle that is currently wired or the service
+     * package is not wired in a way we understand, e.g., it comes from the boot class path.
+     */
+    private WiringView getWiringView(Class<?> serviceClass, Class<?> caller) {
+        if (caller == null) {
+            return null;
+        }
+        final ClassLoader callerLoader = caller.getClassLoader();
+        if (!(callerLoader instanceof BundleReference)) {
+            return null;
+        }
+        final BundleWiring callerWiring = ((BundleReference) callerLoader).getBundle().adapt(BundleWiring.class);
+        if (callerWiring == null || callerWiring.getClassLoader() != callerLoader) {
+            // not resolved or the caller belongs to a revision which is being refreshed away
+            return null;
+        }
+        final String serviceName = serviceClass.getName();
+        final String packageName = serviceName.substring(0, Math.max(serviceName.lastIndexOf('.'), 0));
+        final ConcurrentMap<BundleRevision, ConcurrentMap<String, WiringView>> views = wiringViews;
+        ConcurrentMap<String, WiringView> viewsOfRevision = views.get(callerWiring.getRevision());
+        if (viewsOfRevision == null) {
+            final ConcurrentMap<String, WiringView> created = new ConcurrentHashMap<String, WiringView>();
+            viewsOfRevision = views.putIfAbsent(callerWiring.getRevision(), created);
+            if (viewsOfRevision == null) {
+                viewsOfRevision = created;
+            }
+        }
+        WiringView view = viewsOfRevision.get(packageName);
+        if (view == null) {
+            // Racing threads may work out the same view, which does no harm, as only one of them is kept.
+            final WiringView created = createWiringView(callerWiring, packageName, serviceClass);
+            view = viewsOfRevision.putIfAbsent(packageName, created != null ? created : NO_WIRING_VIEW);
+            if (view == null) {
+                view = created != null ? created : NO_WIRING_VIEW;
+            }
+        }
+        return view != NO_WIRING_VIEW ? view : null;
+    }
+
+    private WiringView createWiringView(BundleWiring callerWiring, String packageName, Class<?> serviceClass) {
+        BundleWiring source = null;
+        final List<BundleWire> requiredWires = callerWiring.getRequiredWires(PackageNamespace.PACKAGE_NAMESPACE);
+        if (requiredWires != null) {
+            for (BundleWire wire : requiredWires) {
+                if (packageName.equals(wire.getCapability().getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE))) {
+                    source = wire.getProviderWiring();
+                    break;
                 }
             }
-            return providerClasses;
-        } finally {
-            rwLock.readLock().unlock();
+        }
+        if (source == null) {
+            // the caller may have the package itself
+            source = callerWiring;
+        }
+        if (source.getClassLoader() != serviceClass.getClassLoader()) {
+            // e.g., the package comes from the boot class path or by way of Require-Bundle
+            debug("Unable to tell from the wiring of " + callerWiring + " where " + serviceClass + " comes from");
+            return null;
+        }
+        final WiringView view = new WiringView();
+        view.add(source);
+        final List<BundleWire> packageWires = source.getProvidedWires(PackageNamespace.PACKAGE_NAMESPACE);
+        if (packageWires != null) {
+            for (BundleWire wire : packageWires) {
+                if (packageName.equals(wire.getCapability().getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE))) {
+                    view.add(wire.getRequirerWiring());
+                }
+            }
+        }
+        final List<BundleWire> bundleWires = source.getProvidedWires(BundleNamespace.BUNDLE_NAMESPACE);
+        if (bundleWires != null) {
+            for (BundleWire wire : bundleWires) {
+                view.add(wire.getRequirerWiring());
+            }
+        }
+        return view;
+    }
+
+    /**
+     * @param providerEntries index list of the service in the current snapshot
+     * @return provider classes of the service, either from the cache if they are still valid or freshly resolved.
+     */
+    private ResolvedProviderClasses resolveProviders(Class<?> serviceClass, List<ProviderEntry> providerEntries) {
+        final ProviderClassesCache cache = providerClassesCache.get(serviceClass);
+        final ResolvedProviderClasses resolved = cache.getResolved();
+        if (resolved != null && resolved.getProviderEntries() == providerEntries) {
+            stats.lookedUp(serviceClass, true);
+            return resolved;
+        }
+        stats.lookedUp(serviceClass, false);
+        final List<ResolvedProvider> providers = new ArrayList<ResolvedProvider>();
+        final ProviderIterator iterator = new ProviderIterator(serviceClass, providerEntries);
+        while (iterator.hasNext()) {
+            providers.add(iterator.next());
+        }
+        final ResolvedProviderClasses result = new ResolvedProviderClasses(providerEntries, providers);
+        if (iterator.isComplete()) {
+            // Only cache a fully resolved result, else a provider which can be loaded later would never show up.
+            cache.setResolved(result);
+            // A flush which has replaced the providers meanwhile may have missed our result when discarding them
+            if (providersList.get().getProviders(serviceClass.getName()) != providerEntries) {
+                cache.setResolved(null);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return an iterator which returns the cached providers of the service if they are still valid,
+     * else one which loads provider classes only as it goes.
+     */
+    private Iterator<ResolvedProvider> providerIterator(Class<?> serviceClass, List<ProviderEntry> providerEntries) {
+        final ResolvedProviderClasses resolved = providerClassesCache.get(serviceClass).getResolved();
+        if (resolved != null && resolved.getProviderEntries() == providerEntries) {
+            stats.lookedUp(serviceClass, true);
+            return resolved.getProviders().iterator();
+        }
+        stats.lookedUp(serviceClass, false);
+        return new ProviderIterator(serviceClass, providerEntries);
+    }
+
+    /**
+     * Loads the provider class of the given entry.
+     *
+     * @return the provider class, null if it can't be loaded, in which case the entry is marked as unloadable
+     * @throws RuntimeException if the class can't be loaded right now, e.g. because its bundle is being updated
+     * or has been uninstalled. The next snapshot will tell.
+     */
+    private Class loadProviderClass(ProviderEntry providerEntry, Class<?> serviceClass) {
+        if (providerEntry.isUnloadable()) {
+            return null;
+        }
+        final Bundle bundle = bundleContext.getBundle(providerEntry.getBundleId());
+        if (bundle == null) {
+            throw new IllegalStateException("Bundle " + providerEntry.getBundleId() + " has been uninstalled");
+        }
+        final long start = System.nanoTime();
+        try {
+            final Class providerClass = loadClassSecured(bundle, providerEntry.getProviderName());
+            stats.providerClassLoaded(serviceClass, providerEntry.getProviderName(), System.nanoTime() - start);
+            return providerClass;
+        } catch (ClassNotFoundException e) {
+            stats.providerClassLoaded(serviceClass, providerEntry.getProviderName(), System.nanoTime() - start);
+            // This won't change until the bundle is resolved, refreshed or updated, which gives us
+            // a new entry anyway. No point in trying and reporting it again till then.
+            providerEntry.setUnloadable();
+            debug("Provider " + providerEntry.getProviderName() + " listed by bundle " + bundle
+                    + " can't be loaded", e);
+            return null;
+        } catch (RuntimeException e) {
+            debug("Provider " + providerEntry.getProviderName() + " listed by bundle " + bundle
+                    + " can't be loaded right now", e);
+            throw e;
         }
     }
 
@@ -152,7 +749,27 @@ public final class ServiceLoaderImpl extends org.glassfish.hk2.osgiresourcelocat
         }
     }
 
+    private static ClassValue<Map<ClassLoader, Boolean>> newCompatibilityVerdicts() {
+        return new ClassValue<Map<ClassLoader, Boolean>>() {
+            @Override
+            protected Map<ClassLoader, Boolean> computeValue(Class<?> type) {
+                return Collections.synchronizedMap(new WeakHashMap<ClassLoader, Boolean>());
+            }
+        };
+    }
+
     private boolean isCompatible(Class providerClass, Class serviceClass) {
+        final Map<ClassLoader, Boolean> verdicts = compatibilityVerdicts.get(serviceClass);
+        final ClassLoader providerClassLoader = providerClass.getClassLoader();
+        Boolean verdict = verdicts.get(providerClassLoader);
+        if (verdict == null) {
+            verdict = checkCompatibility(providerClass, serviceClass);
+            verdicts.put(providerClassLoader, verdict);
+        }
+        return verdict;
+    }
+
+    private boolean checkCompatibility(Class providerClass, Class serviceClass) {
         try {
             // We can't do an isAssignable check, because the provider class may not be assignable to service class
             // in cases like JAXBContextFactory. So, we try to see if provider sees the same service class or not.
@@ -185,182 +802,1087 @@ public final class ServiceLoaderImpl extends org.glassfish.hk2.osgiresourcelocat
     }
 
     /**
-     * Loads a single service file and returns the names of the providers.
-     * If the same provider appears multiple times, the list contains only one entry for all of the duplicates.
-     *
-     * @return names of providers, empty list if none is found
+     * Loads and checks provider classes of a service one at a time while it is being iterated.
+     * Providers which can't be loaded or are not compatible with the service class are skipped.
      */
-    private List<String> load(InputStream is) throws IOException {
-        List<String> providerNames = new ArrayList<String>();
-        try {
-            /*
-             * The format of service file is specified at
-             * http://java.sun.com/j2se/1.3/docs/guide/jar/jar.html#Service%20Provider
-             * According to the above spec,
-             * The file contains a list of fully-qualified binary names of
-             * concrete provider classes, one per line.
-             * Space and tab characters surrounding each name,
-             * as well as blank lines, are ignored.
-             * The comment character is '#' ('\u0023', NUMBER SIGN);
-             * on each line all characters following the first comment
-             * character are ignored. The file must be encoded in UTF-8.
-             */
-            Scanner scanner = new Scanner(is);
-            final String commentPattern = "#"; // NOI18N
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if (!line.startsWith(commentPattern)) {
-                    StringTokenizer st = new StringTokenizer(line);
-                    while (st.hasMoreTokens()) {
-                        providerNames.add(st.nextToken());
-                        break; // Only one entry per line
-                    }
-                }
-            }
-        } finally {
-            is.close();
-        }
-        return providerNames;
-    }
+    private class ProviderIterator implements Iterator<ResolvedProvider> {
+        private final Class<?> serviceClass;
+        private final Iterator<ProviderEntry> providerEntries;
+        private ResolvedProvider next;
+        private boolean complete = true;
 
-    private class BundleTracker implements BundleListener {
-        public void bundleChanged(BundleEvent event) {
-            Bundle bundle = event.getBundle();
-            switch (event.getType()) {
-                case BundleEvent.INSTALLED:
-                    addProviders(bundle);
-                    break;
-                case BundleEvent.UNINSTALLED:
-                    removeProviders(bundle);
-                    break;
-                case BundleEvent.UPDATED:
-                    removeProviders(bundle);
-                    addProviders(bundle);
-                    break;
-            }
+        ProviderIterator(Class<?> serviceClass, List<ProviderEntry> providerEntries) {
+            this.serviceClass = serviceClass;
+            this.providerEntries = providerEntries.iterator();
         }
-    }
 
-    private void addProviders(Bundle bundle) {
-        rwLock.writeLock().lock();
-        try {
-            final String SERVICE_LOCATION = "META-INF/services";
-            if (bundle.getEntry(SERVICE_LOCATION) == null) return;
-            Enumeration<String> entries;
-            entries = bundle.getEntryPaths(SERVICE_LOCATION);
-            if (entries != null) {
-                ProvidersPerBundle providers = new ProvidersPerBundle(bundle.getBundleId());
-                while (entries.hasMoreElements()) {
-                    String entry = entries.nextElement();
-                    String serviceName = entry.substring(SERVICE_LOCATION.length() + 1);
-                    InputStream is;
-                    final URL url = bundle.getEntry(entry);
-                    try {
-                        is = url.openStream();
-                        List<String> providerNames = load(is);
-                        debug("Bundle = " + bundle + ", serviceName = " + serviceName + ", providerNames = " + providerNames);
-                        providers.put(serviceName, providerNames);
-                    } catch (IOException e) {
+        public boolean hasNext() {
+            while (next == null && providerEntries.hasNext()) {
+                final ProviderEntry providerEntry = providerEntries.next();
+                try {
+                    final Class providerClass = loadProviderClass(providerEntry, serviceClass);
+                    if (providerClass != null && isCompatible(providerClass, serviceClass)) {
+                        next = new ResolvedProvider(providerEntry, providerClass);
                     }
+                } catch (RuntimeException e) {
+                    complete = false;
                 }
-                providersList.addProviders(providers);
             }
-        } finally {
-            rwLock.writeLock().unlock();
+            return next != null;
         }
-    }
 
-    private synchronized void removeProviders(Bundle bundle) {
-        rwLock.writeLock().lock();
-        try {
-            providersList.removeProviders(bundle.getBundleId());
-        } finally {
-            rwLock.writeLock().unlock();
+        public ResolvedProvider next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final ResolvedProvider provider = next;
+            next = null;
+            return provider;
+        }
+
+        /**
+         * @return true if every provider was either loaded or found incompatible or unloadable, i.e., none was
+         * skipped because it could not be loaded yet.
+         */
+        boolean isComplete() {
+            return complete;
         }
     }
 
     /**
-     * Map of service name to provider names for a particular bundle
+     * Provider instances which are created only when iteration reaches them, so that a caller which is
+     * only interested in the first provider does not pay for loading and instantiating the rest.
+     * Like {@link java.util.ServiceLoader}, instances created once are remembered and returned by later
+     * iterations, so every iteration sees the same instances.
      */
-    private static class ProvidersPerBundle {
-        private long bundleId;
-        Map<String, List<String>> serviceToProvidersMap = new HashMap<String, List<String>>();
+    private class ProviderInstances<T> implements Iterable<T> {
+        private final Class<T> serviceClass;
+        private final ProviderFactory<T> factory;
+        private final ProviderScope scope;
+        private final Iterator<ResolvedProvider> providers;
+        private final List<T> instances = new ArrayList<T>();
 
-        private ProvidersPerBundle(long bundleId) {
-            this.bundleId = bundleId;
-        }
-
-        public long getBundleId() {
-            return bundleId;
+        ProviderInstances(Class<T> serviceClass, ProviderFactory<T> factory, ProviderScope scope,
+                          Iterator<ResolvedProvider> providers) {
+            this.serviceClass = serviceClass;
+            this.factory = factory;
+            this.scope = scope;
+            this.providers = providers;
         }
 
-        public void put(String serviceName, List<String> providerNames) {
-            serviceToProvidersMap.put(serviceName, providerNames);
-        }
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private int idx;
+
+                public boolean hasNext() {
+                    synchronized (ProviderInstances.this) {
+                        return idx < instances.size() || makeNext();
+                    }
+                }
+
+                public T next() {
+                    synchronized (ProviderInstances.this) {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return instances.get(idx++);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Instantiates the next provider.
+         *
+         * @return false if there are no more providers
+         */
+        private boolean makeNext() {
+            while (providers.hasNext()) {
+                final ResolvedProvider provider = providers.next();
+                try {
+                    final T providerInstance = scope == ProviderScope.SINGLETON
+                            ? provider.getEntry().getSingleton(serviceClass, provider.getProviderClass(), factory)
+                            : factory.make(provider.getProviderClass(), serviceClass);
+                    if (providerInstance != null) {
+                        instances.add(providerInstance);
+                        return true;
+                    } else {
+                        debug(factory + " returned null provider instance!!!");
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Reports how long the wrapped factory takes to make provider instances.
+     */
+    private class TimedFactory<T> implements ProviderFactory<T> {
+        private final ProviderFactory<T> factory;
+
+        TimedFactory(ProviderFactory<T> factory) {
+            this.factory = factory;
+        }
+
+        public T make(Class providerClass, Class<T> serviceClass) throws Exception {
+            final long start = System.nanoTime();
+            try {
+                return factory.make(providerClass, serviceClass);
+            } finally {
+                stats.providerInstantiated(serviceClass, providerClass, System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return factory.toString();
+        }
+    }
+
+    /**
+     * Tracks bundles in one of the {@link #TRACKED_STATES}. Whenever a bundle shows up, goes away or gets
+     * updated, it is queued to have its service files read by {@link ServiceLoaderImpl#flushBundleEvents()}.
+     * A bundle which has merely been resolved or unresolved has the same service files as before, so the flush
+     * only gives its providers fresh entries, which throws away whatever has been cached about them while they
+     * could not be loaded or were loaded by a class loader that is now gone. Singleton instances are kept.
+     */
+    private class ProvidersTracker extends org.osgi.util.tracker.BundleTracker<Bundle> {
+        ProvidersTracker() {
+            super(bundleContext, TRACKED_STATES, null);
+        }
+
+        @Override
+        public Bundle addingBundle(Bundle bundle, BundleEvent event) {
+            queueBundle(bundle, eventFlushDelay);
+            return bundle;
+        }
+
+        @Override
+        public void modifiedBundle(Bundle bundle, BundleEvent event, Bundle object) {
+            if (event == null) return;
+            switch (event.getType()) {
+                case BundleEvent.RESOLVED:
+                case BundleEvent.UNRESOLVED:
+                    wiringChanged();
+                    queueRewiredBundle(bundle);
+                    break;
+                case BundleEvent.UPDATED:
+                    wiringChanged();
+                    queueBundle(bundle, eventFlushDelay);
+                    break;
+            }
+        }
+
+        @Override
+        public void removedBundle(Bundle bundle, BundleEvent event, Bundle object) {
+            wiringChanged();
+            queueBundle(bundle, eventFlushDelay);
+        }
+    }
+
+    /**
+     * Throws away everything derived from the wiring of bundles.
+     */
+    private void wiringChanged() {
+        compatibilityVerdicts = newCompatibilityVerdicts();
+        wiringViews = new ConcurrentHashMap<BundleRevision, ConcurrentMap<String, WiringView>>();
+    }
+
+    /**
+     * Queues the given bundle to be looked at by a flush which starts within the given number of milliseconds.
+     */
+    private void queueBundle(Bundle bundle, long delay) {
+        synchronized (pendingBundles) {
+            if (!tracking) return;
+            pendingBundles.put(bundle.getBundleId(), bundle);
+            scheduleFlush(delay);
+        }
+    }
+
+    /**
+     * Queues the given bundle, which has been resolved or unresolved, to get fresh entries for its providers.
+     */
+    private void queueRewiredBundle(Bundle bundle) {
+        synchronized (pendingBundles) {
+            if (!tracking) return;
+            rewiredBundles.add(bundle.getBundleId());
+            scheduleFlush(eventFlushDelay);
+        }
+    }
+
+    // called with pendingBundles held
+    private void scheduleFlush(long delay) {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            try {
+                eventExecutor.schedule(new Runnable() {
+                    public void run() {
+                        flushBundleEvents();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // we are being stopped
+                flushScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Applies all queued bundle events in one go: bundles which are not in one of the {@link #TRACKED_STATES}
+     * any more lose their providers, all others get their service files read again. Bundles which have merely been
+     * resolved or unresolved get fresh entries for the providers they already have. The service files are read
+     * before the snapshot is touched and the result is published with a single swap, no matter how many bundles
+     * have changed.
+     */
+    private void flushBundleEvents() {
+        synchronized (flushLock) {
+            final List<Bundle> bundles;
+            final Set<Long> rewired;
+            synchronized (pendingBundles) {
+                if (!tracking) return;
+                bundles = new ArrayList<Bundle>(pendingBundles.values());
+                rewired = new HashSet<Long>(rewiredBundles);
+                // reading the service files again gives fresh entries anyway
+                rewired.removeAll(pendingBundles.keySet());
+                pendingBundles.clear();
+                rewiredBundles.clear();
+                flushScheduled = false;
+                flushing++;
+            }
+            try {
+                applyBundleEvents(bundles, rewired);
+            } finally {
+                synchronized (pendingBundles) {
+                    flushing--;
+                    pendingBundles.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void applyBundleEvents(List<Bundle> bundles, Set<Long> rewired) {
+        final Set<Long> changed = new HashSet<Long>();
+        final List<Bundle> present = new ArrayList<Bundle>();
+        for (Bundle bundle : bundles) {
+            changed.add(bundle.getBundleId());
+            if ((bundle.getState() & TRACKED_STATES) != 0) {
+                present.add(bundle);
+            }
+        }
+        if (changed.isEmpty() && rewired.isEmpty()) return;
+        final List<Bundle> failed = new ArrayList<Bundle>();
+        final List<ProvidersPerBundle> added = loadProviders(present, failed);
+        // keep what we know about bundles we could not read till a retry succeeds
+        for (Bundle bundle : failed) {
+            changed.remove(bundle.getBundleId());
+        }
+        retryLater(failed, changed);
+        // only flushes publish snapshots, and they do so one at a time
+        final ProvidersList current = providersList.get();
+        providersList.set(current.withChanges(changed, added, rewired));
+        final Set<String> changedServices = new HashSet<String>();
+        for (Long bundleId : changed) {
+            discardSingletons(current, bundleId);
+            changedServices.addAll(current.getServiceNames(bundleId));
+        }
+        for (Long bundleId : rewired) {
+            changedServices.addAll(current.getServiceNames(bundleId));
+        }
+        for (ProvidersPerBundle providers : added) {
+            changedServices.addAll(providers.getServiceToProvidersMap().keySet());
+        }
+        discardResolvedProviders(changedServices);
+        for (ServiceLoader.ProviderListenerRegistration registration : ServiceLoader.getProviderListeners()) {
+            try {
+                updateProviderListener1(registration);
+            } catch (RuntimeException e) {
+                // must not keep the other listeners from being told
+                debug("Unable to update provider listener " + registration.listener, e);
+            }
+        }
+    }
+
+    /**
+     * Tells a provider listener which providers of its service have come and gone since it was last brought
+     * up to date. Providers are told apart by their index entries, which stay the same as long as their bundle
+     * is neither updated nor uninstalled, so this is cheap when nothing has changed for the service.
+     */
+    /*package*/ void updateProviderListener1(ServiceLoader.ProviderListenerRegistration registration) {
+        final Class<?> serviceClass = registration.serviceClass;
+        synchronized (registration) {
+            if (!providerListenersEnabled || registration.removed) return;
+            final List<ProviderEntry> providerEntries = providersList.get().getProviders(serviceClass.getName());
+            if (providerEntries == registration.lastSeen) return;
+            final Set<ProviderEntry> current = Collections.newSetFromMap(new IdentityHashMap<ProviderEntry, Boolean>());
+            current.addAll(providerEntries);
+            // Work out both deltas before touching what the listener has been told, so that a provider class
+            // which can't be loaded right now does not make us forget about providers which are gone.
+            final List<Object> goneEntries = new ArrayList<Object>();
+            for (Object reportedEntry : registration.reported.keySet()) {
+                if (!current.contains(reportedEntry)) {
+                    goneEntries.add(reportedEntry);
+                }
+            }
+            final List<ProviderEntry> newEntries = new ArrayList<ProviderEntry>();
+            final List<Class> newClasses = new ArrayList<Class>();
+            boolean complete = true;
+            for (ProviderEntry providerEntry : providerEntries) {
+                if (registration.reported.containsKey(providerEntry)) {
+                    continue;
+                }
+                try {
+                    final Class providerClass = loadProviderClass(providerEntry, serviceClass);
+                    newClasses.add(providerClass != null && isCompatible(providerClass, serviceClass)
+                            ? providerClass : null);
+                    newEntries.add(providerEntry);
+                } catch (RuntimeException e) {
+                    // try again with the next snapshot
+                    complete = false;
+                }
+            }
+            final List<Class> removed = new ArrayList<Class>();
+            for (Object goneEntry : goneEntries) {
+                final Class providerClass = registration.reported.remove(goneEntry);
+                if (providerClass != null) {
+                    removed.add(providerClass);
+                }
+            }
+            final List<Class> added = new ArrayList<Class>();
+            for (int i = 0; i < newEntries.size(); i++) {
+                registration.reported.put(newEntries.get(i), newClasses.get(i));
+                if (newClasses.get(i) != null) {
+                    added.add(newClasses.get(i));
+                }
+            }
+            registration.lastSeen = complete ? providerEntries : null;
+            // A bundle which merely got resolved gets new entries for the very same classes.
+            // Don't bother the listener with those.
+            for (Iterator<Class> it = removed.iterator(); it.hasNext(); ) {
+                if (added.remove(it.next())) {
+                    it.remove();
+                }
+            }
+            try {
+                if (!removed.isEmpty()) {
+                    registration.listener.providersRemoved(serviceClass, Collections.unmodifiableList(removed));
+                }
+                if (!added.isEmpty()) {
+                    registration.listener.providersAdded(serviceClass, Collections.unmodifiableList(added));
+                }
+            } catch (RuntimeException e) {
+                debug("Provider listener " + registration.listener + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Tells a provider listener that all providers it knows of are gone.
+     */
+    private void retractProviders(ServiceLoader.ProviderListenerRegistration registration) {
+        synchronized (registration) {
+            final List<Class> removed = new ArrayList<Class>();
+            for (Class providerClass : registration.reported.values()) {
+                if (providerClass != null) {
+                    removed.add(providerClass);
+                }
+            }
+            registration.reported.clear();
+            registration.lastSeen = null;
+            if (removed.isEmpty() || registration.removed) return;
+            try {
+                registration.listener.providersRemoved(registration.serviceClass,
+                        Collections.unmodifiableList(removed));
+            } catch (RuntimeException e) {
+                debug("Provider listener " + registration.listener + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Queues bundles whose service files could not be read once more, unless they have failed too often.
+     * Bundles which have been read successfully get their failure count reset.
+     */
+    private void retryLater(List<Bundle> failed, Set<Long> succeeded) {
+        synchronized (pendingBundles) {
+            readFailures.keySet().removeAll(succeeded);
+            for (Bundle bundle : failed) {
+                final Integer failures = readFailures.get(bundle.getBundleId());
+                final int count = failures == null ? 1 : failures + 1;
+                if (count > MAX_READ_RETRIES) {
+                    debug("Giving up reading service files of bundle = " + bundle);
+                    readFailures.remove(bundle.getBundleId());
+                    continue;
+                }
+                readFailures.put(bundle.getBundleId(), count);
+                queueBundle(bundle, Math.max(eventFlushDelay, READ_RETRY_DELAY));
+            }
+        }
+    }
+
+    /**
+     * Discards the provider classes resolved for the given services, which are no longer valid.
+     */
+    private void discardResolvedProviders(Set<String> serviceNames) {
+        synchronized (providerClassesCaches) {
+            for (String serviceName : serviceNames) {
+                final Set<ProviderClassesCache> caches = providerClassesCaches.get(serviceName);
+                if (caches == null) {
+                    continue;
+                }
+                for (ProviderClassesCache cache : caches) {
+                    cache.setResolved(null);
+                }
+                if (caches.isEmpty()) {
+                    providerClassesCaches.remove(serviceName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards singleton instances made from the providers the given bundle had in a snapshot that has been
+     * replaced, as the bundle has been updated or uninstalled since.
+     */
+    private void discardSingletons(ProvidersList replaced, long bundleId) {
+        for (ProviderEntry providerEntry : replaced.getProviders(bundleId)) {
+            providerEntry.discardSingletons();
+        }
+    }
+
+    /**
+     * @return providers found in META-INF/services of the given bundle, null if the bundle does not have any.
+     */
+    private ProvidersPerBundle loadProviders(Bundle bundle) {
+        final long start = System.nanoTime();
+        final ProvidersPerBundle providers = loadServiceFiles(bundle);
+        if (providers != null) {
+            providers.setPriority(getPriority(bundle));
+        }
+        stats.bundleScanned(bundle.getBundleId(), System.nanoTime() - start);
+        return providers;
+    }
+
+    private ProvidersPerBundle loadServiceFiles(Bundle bundle) {
+        final ProvidersCache cache = providersCache;
+        if (cache == null) {
+            return readProviders(bundle);
+        }
+        final Map<String, List<String>> cached = cache.get(bundle);
+        if (cached != null) {
+            debug("Bundle = " + bundle + ", using cached providers " + cached);
+            return cached.isEmpty() ? null : new ProvidersPerBundle(bundle.getBundleId(), cached);
+        }
+        final ProvidersPerBundle providers = readProviders(bundle);
+        cache.put(bundle, providers != null ? providers.getServiceToProvidersMap()
+                : Collections.<String, List<String>>emptyMap());
+        return providers;
+    }
+
+    /**
+     * @return value of the {@link #PROVIDER_PRIORITY_HEADER} of the given bundle, 0 if it has none or it is invalid.
+     */
+    private int getPriority(Bundle bundle) {
+        // the empty locale gives us the raw headers, which spares localizing the whole manifest
+        final String priority = bundle.getHeaders("").get(PROVIDER_PRIORITY_HEADER);
+        if (priority == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(priority.trim());
+        } catch (NumberFormatException e) {
+            debug("Bundle = " + bundle + " has an invalid " + PROVIDER_PRIORITY_HEADER + " header: " + priority);
+            return 0;
+        }
+    }
+
+    /**
+     * Reads META-INF/services of the given bundle. If the bundle is a multi-release jar, a service file in
+     * META-INF/versions/N/META-INF/services takes the place of the one of the same service in a lower version
+     * or at the top, for the highest N the running JVM supports. This is worked out once here, so lookups
+     * don't need to know about versions.
+     *
+     * @return providers found in META-INF/services of the given bundle, null if the bundle does not have any.
+     */
+    private ProvidersPerBundle readProviders(Bundle bundle) {
+        ProvidersPerBundle providers = readProviders(bundle, SERVICE_LOCATION, null);
+        if (Boolean.parseBoolean(bundle.getHeaders("").get(MULTI_RELEASE_HEADER))) {
+            for (int version : getVersions(bundle)) {
+                providers = readProviders(bundle, VERSIONS_LOCATION + version + "/" + SERVICE_LOCATION, providers);
+            }
+        }
+        return providers;
+    }
+
+    /**
+     * @return versions of the given multi-release bundle the running JVM supports, in ascending order
+     */
+    private static List<Integer> getVersions(Bundle bundle) {
+        final Enumeration<String> entries = bundle.getEntryPaths(VERSIONS_LOCATION);
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        final List<Integer> versions = new ArrayList<Integer>();
+        while (entries.hasMoreElements()) {
+            final String entry = entries.nextElement();
+            if (!entry.endsWith("/")) {
+                continue;
+            }
+            try {
+                final int version = Integer.parseInt(entry.substring(VERSIONS_LOCATION.length(), entry.length() - 1));
+                // versioned directories start with 9, see java.util.jar.JarFile
+                if (version >= 9 && version <= JAVA_FEATURE_VERSION) {
+                    versions.add(version);
+                }
+            } catch (NumberFormatException e) {
+                // not a versioned directory
+            }
+        }
+        Collections.sort(versions);
+        return versions;
+    }
+
+    /**
+     * Reads the service files in the given directory of the given bundle, replacing any the given providers
+     * already have for the same services.
+     *
+     * @param providers providers found so far, null if none
+     * @return providers found so far, null if none
+     */
+    private ProvidersPerBundle readProviders(Bundle bundle, String location, ProvidersPerBundle providers) {
+        if (bundle.getEntry(location) == null) return providers;
+        Enumeration<String> entries;
+        entries = bundle.getEntryPaths(location);
+        if (entries == null) return providers;
+        if (providers == null) {
+            providers = new ProvidersPerBundle(bundle.getBundleId());
+        }
+        while (entries.hasMoreElements()) {
+            String entry = entries.nextElement();
+            String serviceName = entry.substring(location.length() + 1);
+            InputStream is;
+            final URL url = bundle.getEntry(entry);
+            try {
+                is = url.openStream();
+                List<String> providerNames = ServiceFileParser.parse(is);
+                debug("Bundle = " + bundle + ", serviceName = " + serviceName + ", providerNames = " + providerNames);
+                providers.put(serviceName, providerNames);
+            } catch (IOException e) {
+            }
+        }
+        return providers;
+    }
+
+    /**
+     * Map of service name to provider names for a particular bundle
+     */
+    /*package*/ static class ProvidersPerBundle {
+        private long bundleId;
+        private int priority;
+        Map<String, List<String>> serviceToProvidersMap = new HashMap<String, List<String>>();
+
+        ProvidersPerBundle(long bundleId) {
+            this.bundleId = bundleId;
+        }
+
+        ProvidersPerBundle(long bundleId, Map<String, List<String>> serviceToProvidersMap) {
+            this.bundleId = bundleId;
+            this.serviceToProvidersMap = serviceToProvidersMap;
+        }
+
+        public long getBundleId() {
+            return bundleId;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public void setPriority(int priority) {
+            this.priority = priority;
+        }
+
+        public void put(String serviceName, List<String> providerNames) {
+            serviceToProvidersMap.put(serviceName, providerNames);
+        }
 
         public Map<String, List<String>> getServiceToProvidersMap() {
             return serviceToProvidersMap;
         }
     }
 
+    /**
+     * A single provider name found in a META-INF/services file of a particular bundle.
+     * An entry lives as long as the bundle is neither updated nor uninstalled; it then gets replaced
+     * or dropped and any singleton instances made from it are discarded. When the bundle is resolved or
+     * unresolved, the entry is replaced by one which keeps the singleton instances.
+     */
+    /*package*/ static class ProviderEntry {
+        private final long bundleId;
+        private final int priority;
+        private final String providerName;
+
+        // set once loading the provider class has failed, see ProvidersTracker
+        private volatile boolean unloadable;
+
+        /*
+         * Singleton instances of this provider, keyed by service class. They are created on demand, so
+         * this stays empty unless someone asks for SINGLETON scope.
+         */
+        private final ConcurrentMap<Class<?>, Object> singletons;
+
+        private ProviderEntry(long bundleId, int priority, String providerName) {
+            this(bundleId, priority, providerName, new ConcurrentHashMap<Class<?>, Object>(1));
+        }
+
+        private ProviderEntry(long bundleId, int priority, String providerName,
+                              ConcurrentMap<Class<?>, Object> singletons) {
+            this.bundleId = bundleId;
+            this.priority = priority;
+            this.providerName = providerName;
+            this.singletons = singletons;
+        }
+
+        /**
+         * @return a new entry for the same provider, which shares the singleton instances of this one
+         * but nothing else
+         */
+        ProviderEntry renew() {
+            return new ProviderEntry(bundleId, priority, providerName, singletons);
+        }
+
+        public long getBundleId() {
+            return bundleId;
+        }
+
+        /**
+         * @return whether providers of this entry's bundle come after those of a bundle with the given priority and id
+         */
+        boolean follows(int priority, long bundleId) {
+            return this.priority > priority || (this.priority == priority && this.bundleId > bundleId);
+        }
+
+        public String getProviderName() {
+            return providerName;
+        }
+
+        /**
+         * @return the singleton instance of this provider for the given service, making it using the factory
+         * if there is none yet. The factory may be called by more than one thread at the same time,
+         * but only one of the instances is ever returned.
+         */
+        <T> T getSingleton(Class<T> serviceClass, Class providerClass, ProviderFactory<T> factory) throws Exception {
+            Object instance = singletons.get(serviceClass);
+            if (instance == null) {
+                instance = factory.make(providerClass, serviceClass);
+                if (instance == null) {
+                    return null;
+                }
+                final Object existing = singletons.putIfAbsent(serviceClass, instance);
+                if (existing != null) {
+                    instance = existing;
+                }
+            }
+            return (T) instance;
+        }
+
+        void discardSingletons() {
+            singletons.clear();
+        }
+
+        boolean isUnloadable() {
+            return unloadable;
+        }
+
+        void setUnloadable() {
+            unloadable = true;
+        }
+    }
+
+    /**
+     * A provider class along with the entry it has been loaded from.
+     */
+    private static class ResolvedProvider {
+        private final ProviderEntry entry;
+        private final Class providerClass;
+
+        private ResolvedProvider(ProviderEntry entry, Class providerClass) {
+            this.entry = entry;
+            this.providerClass = providerClass;
+        }
+
+        public ProviderEntry getEntry() {
+            return entry;
+        }
+
+        public Class getProviderClass() {
+            return providerClass;
+        }
+    }
+
     /**
      * List of {@link ServiceLoaderImpl.ProvidersPerBundle}
-     * Synchronisation is handled by outer class.
+     * Instances are immutable once constructed. Every change produces a new instance which shares
+     * unchanged parts with the old one, so it can be safely published to concurrent readers.
      */
-    private static class ProvidersList {
-        // This list is sorted in ascending order of bundle id
-        private List<ProvidersPerBundle> allProviders = new LinkedList<ProvidersPerBundle>();
+    /*package*/ static class ProvidersList {
+        private static final Comparator<ProvidersPerBundle> BY_BUNDLE_ID = new Comparator<ProvidersPerBundle>() {
+            public int compare(ProvidersPerBundle o1, ProvidersPerBundle o2) {
+                return Long.compare(o1.getBundleId(), o2.getBundleId());
+            }
+        };
+
+        /*
+         * Providers of all bundles which have any, sorted in ascending order of bundle id. The providers
+         * of the bundle with id bundleIds[i] are allProviders[i], so a bundle is found by a binary search
+         * over a plain long array.
+         */
+        private final long[] bundleIds;
+        private final ProvidersPerBundle[] allProviders;
+
+        /*
+         * Index of service name to providers of that service across all bundles, sorted in ascending order
+         * of priority, then of bundle id and then in the order they appear in the service file. It is maintained
+         * incrementally as bundles come and go, so that a lookup only visits bundles which actually provide
+         * the service and never has to sort anything.
+         * The lists are never modified once they are put in the map; a change replaces the list.
+         * A service only gets an entry when a bundle with a non empty service file for it comes along and
+         * loses it when the last such bundle goes away, so a missing entry is a reliable negative answer.
+         */
+        private final Map<String, List<ProviderEntry>> serviceToProviderEntriesMap;
+
+        ProvidersList() {
+            this(new long[0], new ProvidersPerBundle[0], new HashMap<String, List<ProviderEntry>>());
+        }
+
+        private ProvidersList(long[] bundleIds, ProvidersPerBundle[] allProviders,
+                              Map<String, List<ProviderEntry>> serviceToProviderEntriesMap) {
+            this.bundleIds = bundleIds;
+            this.allProviders = allProviders;
+            this.serviceToProviderEntriesMap = serviceToProviderEntriesMap;
+        }
+
+        /**
+         * @param changed ids of bundles whose existing providers are to be dropped
+         * @param added providers to be added, all of which must belong to bundles in the changed set
+         * @param renewed ids of bundles whose providers are to get fresh entries, see {@link ProviderEntry#renew()}
+         * @return a copy of this list with all the changes applied
+         */
+        ProvidersList withChanges(Set<Long> changed, List<ProvidersPerBundle> added, Set<Long> renewed) {
+            final ProvidersPerBundle[] sortedAdded = added.toArray(new ProvidersPerBundle[added.size()]);
+            Arrays.sort(sortedAdded, BY_BUNDLE_ID);
+            final List<ProvidersPerBundle> removed = new ArrayList<ProvidersPerBundle>();
+            // Merge the added providers into the ones we keep. As both are sorted, this is a single pass.
+            final long[] ids = new long[bundleIds.length + sortedAdded.length];
+            final ProvidersPerBundle[] providers = new ProvidersPerBundle[ids.length];
+            int size = 0;
+            int next = 0;
+            for (int i = 0; i < bundleIds.length; i++) {
+                while (next < sortedAdded.length && sortedAdded[next].getBundleId() < bundleIds[i]) {
+                    ids[size] = sortedAdded[next].getBundleId();
+                    providers[size++] = sortedAdded[next++];
+                }
+                if (changed.contains(bundleIds[i])) {
+                    removed.add(allProviders[i]);
+                } else {
+                    ids[size] = bundleIds[i];
+                    providers[size++] = allProviders[i];
+                }
+            }
+            while (next < sortedAdded.length) {
+                ids[size] = sortedAdded[next].getBundleId();
+                providers[size++] = sortedAdded[next++];
+            }
+            // Index lists are never modified in place, so a shallow copy of the map is enough.
+            final ProvidersList copy = new ProvidersList(Arrays.copyOf(ids, size), Arrays.copyOf(providers, size),
+                    new HashMap<String, List<ProviderEntry>>(serviceToProviderEntriesMap));
+            for (ProvidersPerBundle providersPerBundle : removed) {
+                copy.removeFromIndex(providersPerBundle);
+            }
+            for (ProvidersPerBundle providersPerBundle : sortedAdded) {
+                copy.addToIndex(providersPerBundle);
+            }
+            for (Long bundleId : renewed) {
+                copy.renewEntries(bundleId);
+            }
+            return copy;
+        }
+
+        private void renewEntries(long bundleId) {
+            for (String serviceName : getServiceNames(bundleId)) {
+                final List<ProviderEntry> current = getProviders(serviceName);
+                if (current.isEmpty()) {
+                    continue;
+                }
+                final List<ProviderEntry> updated = new ArrayList<ProviderEntry>(current.size());
+                for (ProviderEntry providerEntry : current) {
+                    updated.add(providerEntry.getBundleId() == bundleId ? providerEntry.renew() : providerEntry);
+                }
+                serviceToProviderEntriesMap.put(serviceName, updated);
+            }
+        }
+
+        private void addToIndex(ProvidersPerBundle providers) {
+            final long bundleId = providers.getBundleId();
+            final int priority = providers.getPriority();
+            for (Map.Entry<String, List<String>> entry : providers.getServiceToProvidersMap().entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    continue;
+                }
+                final List<ProviderEntry> current = getProviders(entry.getKey());
+                final List<ProviderEntry> updated =
+                        new ArrayList<ProviderEntry>(current.size() + entry.getValue().size());
+                final int idx = insertionPoint(current, priority, bundleId);
+                updated.addAll(current.subList(0, idx));
+                for (String providerName : entry.getValue()) {
+                    updated.add(new ProviderEntry(bundleId, priority, providerName));
+                }
+                updated.addAll(current.subList(idx, current.size()));
+                serviceToProviderEntriesMap.put(entry.getKey(), updated);
+            }
+        }
+
+        /**
+         * @return index of the first entry in the given sorted list which comes after providers of a bundle
+         * with the given priority and id, size of the list if there is none
+         */
+        private static int insertionPoint(List<ProviderEntry> providerEntries, int priority, long bundleId) {
+            int low = 0;
+            int high = providerEntries.size();
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (providerEntries.get(mid).follows(priority, bundleId)) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
 
-        void addProviders(ProvidersPerBundle providers) {
-            long bundleId = providers.getBundleId();
-            int idx = 0;
-            Iterator<ProvidersPerBundle> iterator = getAllProviders().iterator();
-            while (iterator.hasNext()) {
-                ProvidersPerBundle providersPerBundle = iterator.next();
-                if (providersPerBundle.getBundleId() > bundleId) {
-                    getAllProviders().add(idx, providers);
-                    return;
+        private void removeFromIndex(ProvidersPerBundle providers) {
+            final long bundleId = providers.getBundleId();
+            for (String serviceName : providers.getServiceToProvidersMap().keySet()) {
+                final List<ProviderEntry> current = getProviders(serviceName);
+                final List<ProviderEntry> updated = new ArrayList<ProviderEntry>(current.size());
+                for (ProviderEntry providerEntry : current) {
+                    if (providerEntry.getBundleId() != bundleId) {
+                        updated.add(providerEntry);
+                    }
+                }
+                if (updated.isEmpty()) {
+                    serviceToProviderEntriesMap.remove(serviceName);
+                } else {
+                    serviceToProviderEntriesMap.put(serviceName, updated);
                 }
             }
-            getAllProviders().add(providers);
         }
 
-        void removeProviders(long bundleId) {
-            Iterator<ProvidersPerBundle> iterator = getAllProviders().iterator();
-            while (iterator.hasNext()) {
-                ProvidersPerBundle providersPerBundle = iterator.next();
-                if (providersPerBundle.getBundleId() == bundleId) {
-                    iterator.remove();
-                    return;
+        /**
+         * @return names of the services the given bundle has service files for, empty set if none.
+         */
+        public Set<String> getServiceNames(long bundleId) {
+            final int idx = Arrays.binarySearch(bundleIds, bundleId);
+            return idx < 0 ? Collections.<String>emptySet() : allProviders[idx].getServiceToProvidersMap().keySet();
+        }
+
+        /**
+         * @return providers of all services found in the given bundle, empty list if none.
+         */
+        public List<ProviderEntry> getProviders(long bundleId) {
+            final int idx = Arrays.binarySearch(bundleIds, bundleId);
+            if (idx < 0) {
+                return Collections.emptyList();
+            }
+            final List<ProviderEntry> result = new ArrayList<ProviderEntry>();
+            for (String serviceName : allProviders[idx].getServiceToProvidersMap().keySet()) {
+                for (ProviderEntry providerEntry : getProviders(serviceName)) {
+                    if (providerEntry.getBundleId() == bundleId) {
+                        result.add(providerEntry);
+                    }
                 }
             }
+            return result;
+        }
+
+        /**
+         * @return providers of the given service sorted in ascending order of priority and bundle id,
+         * empty list if none.
+         */
+        public List<ProviderEntry> getProviders(String serviceName) {
+            final List<ProviderEntry> providerEntries = serviceToProviderEntriesMap.get(serviceName);
+            return providerEntries != null ? providerEntries : Collections.<ProviderEntry>emptyList();
+        }
+    }
+
+    /**
+     * Provider classes resolved for a service class along with the index list they were resolved from.
+     * The index list of a service is replaced whenever a bundle contributing to that service is installed,
+     * updated, resolved, unresolved or uninstalled, so comparing it by identity with the current list tells whether the
+     * resolved classes are still valid. Events of bundles unrelated to the service don't invalidate it.
+     */
+    private static class ResolvedProviderClasses {
+        private final List<ProviderEntry> providerEntries;
+        private final List<ResolvedProvider> providers;
+        private final List<Class> providerClasses;
+
+        private ResolvedProviderClasses(List<ProviderEntry> providerEntries, List<ResolvedProvider> providers) {
+            this.providerEntries = providerEntries;
+            this.providers = Collections.unmodifiableList(providers);
+            final List<Class> providerClasses = new ArrayList<Class>(providers.size());
+            for (ResolvedProvider provider : providers) {
+                providerClasses.add(provider.getProviderClass());
+            }
+            this.providerClasses = Collections.unmodifiableList(providerClasses);
+        }
+
+        public List<ProviderEntry> getProviderEntries() {
+            return providerEntries;
+        }
+
+        public List<ResolvedProvider> getProviders() {
+            return providers;
+        }
+
+        public List<Class> getProviderClasses() {
+            return providerClasses;
+        }
+    }
+
+    /**
+     * What we know about a particular service class.
+     */
+    private static class ProviderClassesCache {
+        private volatile ResolvedProviderClasses resolved;
+        private volatile ProviderScope scope = ProviderScope.PROTOTYPE;
+
+        public ProviderScope getScope() {
+            return scope;
+        }
+
+        public void setScope(ProviderScope scope) {
+            this.scope = scope;
+        }
+
+        public ResolvedProviderClasses getResolved() {
+            return resolved;
+        }
+
+        public void setResolved(ResolvedProviderClasses resolved) {
+            this.resolved = resolved;
+        }
+    }
+
+    /**
+     * Bundles which get a particular package from the same place as a particular caller: the bundle exporting it
+     * and all bundles importing it from there or requiring that bundle. Provider classes of a service resolved
+     * for the caller are remembered as well.
+     */
+    private static class WiringView {
+        private final Set<Long> bundleIds = new HashSet<Long>();
+        private final Set<ClassLoader> classLoaders =
+                Collections.newSetFromMap(new IdentityHashMap<ClassLoader, Boolean>());
+        private final ConcurrentMap<String, ResolvedProviderClasses> resolved =
+                new ConcurrentHashMap<String, ResolvedProviderClasses>();
+
+        void add(BundleWiring wiring) {
+            if (wiring == null) return;
+            bundleIds.add(wiring.getBundle().getBundleId());
+            final ClassLoader classLoader = wiring.getClassLoader();
+            if (classLoader != null) {
+                classLoaders.add(classLoader);
+            }
+        }
+
+        boolean contains(long bundleId) {
+            return bundleIds.contains(bundleId);
         }
 
         /**
-         * @return a list of {@link ProvidersPerBundle} sorted in ascending order of bundle id.
+         * @return true if the given class is defined by one of the bundles in this view
          */
-        public List<ProvidersPerBundle> getAllProviders() {
-            return allProviders;
+        boolean sees(Class<?> providerClass) {
+            return classLoaders.contains(providerClass.getClassLoader());
+        }
+
+        ResolvedProviderClasses getResolved(String serviceName) {
+            return resolved.get(serviceName);
+        }
+
+        void setResolved(String serviceName, ResolvedProviderClasses providers) {
+            resolved.put(serviceName, providers);
+        }
+    }
+
+    /*package*/ static class DaemonThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, namePrefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
         }
     }
 
     private static class DefaultFactory<T> implements ProviderFactory<T> {
         public T make(Class providerClass, Class<T> serviceClass) throws Exception {
             if (serviceClass.isAssignableFrom(providerClass)) {
-                return (T) providerClass.newInstance();
+                final MethodHandle constructor = CONSTRUCTORS.get(providerClass);
+                if (constructor == null) {
+                    // Let reflection report why the class can't be instantiated.
+                    return (T) providerClass.getConstructor().newInstance();
+                }
+                try {
+                    return (T) (Object) constructor.invokeExact();
+                } catch (Exception e) {
+                    throw e;
+                } catch (Error e) {
+                    throw e;
+                } catch (Throwable t) {
+                    throw new InvocationTargetException(t);
+                }
             }
             return null;
         }
     }
 
+    /**
+     * Handles of public no-arg constructors, looked up once per provider class. The handle is typed to return
+     * Object, so that it can be invoked exactly without knowing the provider class. If a class does not have
+     * an accessible no-arg constructor or is abstract, the value is null.
+     */
+    private static final ClassValue<MethodHandle> CONSTRUCTORS = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            if (Modifier.isAbstract(type.getModifiers())) {
+                return null;
+            }
+            try {
+                return MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class))
+                        .asType(MethodType.methodType(Object.class));
+            } catch (NoSuchMethodException e) {
+                return null;
+            } catch (IllegalAccessException e) {
+                return null;
+            }
+        }
+    };
+
     private void debug(String s) {
-        if (Boolean.valueOf(bundleContext.getProperty("org.glassfish.hk2.osgiresourcelocator.debug"))) {
+        if (debugEnabled) {
             System.out.println("org.glassfish.hk2.osgiresourcelocator:DEBUG: " + s);
         }
     }
 
     private void debug(String s, Throwable t) {
-        if (Boolean.valueOf(bundleContext.getProperty("org.glassfish.hk2.osgiresourcelocator.debug"))) {
+        if (debugEnabled) {
             System.out.println("org.glassfish.hk2.osgiresourcelocator:DEBUG: " + s);
             t.printStackTrace(System.out);
         }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoader.LookupListener;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the numbers exposed by {@link ServiceLoaderStatsMXBean} and passes every event on to the
+ * registered {@link LookupListener}s. Counters are {@link LongAdder}s, so concurrent lookups don't contend
+ * on them.
+ */
+final class ServiceLoaderStats implements ServiceLoaderStatsMXBean {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> lookupsByService = new ConcurrentHashMap<String, LongAdder>();
+    private final LongAdder classLoads = new LongAdder();
+    private final LongAdder classLoadTime = new LongAdder();
+    private final LongAdder instantiations = new LongAdder();
+    private final LongAdder instantiationTime = new LongAdder();
+    private final LongAdder bundleScans = new LongAdder();
+    private final LongAdder bundleScanTime = new LongAdder();
+
+    // whether we are the ones registered under OBJECT_NAME, guarded by this
+    private boolean registered;
+
+    void lookedUp(Class<?> serviceClass, boolean hit) {
+        (hit ? hits : misses).increment();
+        LongAdder lookups = lookupsByService.get(serviceClass.getName());
+        if (lookups == null) {
+            final LongAdder created = new LongAdder();
+            lookups = lookupsByService.putIfAbsent(serviceClass.getName(), created);
+            if (lookups == null) {
+                lookups = created;
+            }
+        }
+        lookups.increment();
+        final List<LookupListener> listeners = ServiceLoader.getLookupListeners();
+        if (!listeners.isEmpty()) {
+            for (LookupListener listener : listeners) {
+                try {
+                    listener.lookedUp(serviceClass, hit);
+                } catch (RuntimeException e) {
+                    // a broken listener must not break lookups
+                }
+            }
+        }
+    }
+
+    void providerClassLoaded(Class<?> serviceClass, String providerName, long nanos) {
+        classLoads.increment();
+        classLoadTime.add(nanos);
+        final List<LookupListener> listeners = ServiceLoader.getLookupListeners();
+        if (!listeners.isEmpty()) {
+            for (LookupListener listener : listeners) {
+                try {
+                    listener.providerClassLoaded(serviceClass, providerName, nanos);
+                } catch (RuntimeException e) {
+                    // a broken listener must not break lookups
+                }
+            }
+        }
+    }
+
+    void providerInstantiated(Class<?> serviceClass, Class<?> providerClass, long nanos) {
+        instantiations.increment();
+        instantiationTime.add(nanos);
+        final List<LookupListener> listeners = ServiceLoader.getLookupListeners();
+        if (!listeners.isEmpty()) {
+            for (LookupListener listener : listeners) {
+                try {
+                    listener.providerInstantiated(serviceClass, providerClass, nanos);
+                } catch (RuntimeException e) {
+                    // a broken listener must not break lookups
+                }
+            }
+        }
+    }
+
+    void bundleScanned(long bundleId, long nanos) {
+        bundleScans.increment();
+        bundleScanTime.add(nanos);
+        final List<LookupListener> listeners = ServiceLoader.getLookupListeners();
+        if (!listeners.isEmpty()) {
+            for (LookupListener listener : listeners) {
+                try {
+                    listener.bundleScanned(bundleId, nanos);
+                } catch (RuntimeException e) {
+                    // a broken listener must not break bundle tracking
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers this object with the platform MBean server under {@link #OBJECT_NAME}.
+     */
+    synchronized void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        registered = true;
+    }
+
+    /**
+     * Unregisters this object, unless {@link #register()} has not succeeded, in which case the name may well
+     * belong to another instance in the same JVM.
+     */
+    synchronized void unregister() throws JMException {
+        if (!registered) return;
+        registered = false;
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+    }
+
+    public long getLookupCount() {
+        return hits.sum() + misses.sum();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        final long hitCount = hits.sum();
+        final long lookupCount = hitCount + misses.sum();
+        return lookupCount == 0 ? 0 : (double) hitCount / lookupCount;
+    }
+
+    public Map<String, Long> getLookupCountsByService() {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : lookupsByService.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    public long getClassLoadCount() {
+        return classLoads.sum();
+    }
+
+    public long getClassLoadTime() {
+        return classLoadTime.sum();
+    }
+
+    public long getInstantiationCount() {
+        return instantiations.sum();
+    }
+
+    public long getInstantiationTime() {
+        return instantiationTime.sum();
+    }
+
+    public long getBundleScanCount() {
+        return bundleScans.sum();
+    }
+
+    public long getBundleScanTime() {
+        return bundleScanTime.sum();
+    }
+
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        lookupsByService.clear();
+        classLoads.reset();
+        classLoadTime.reset();
+        instantiations.reset();
+        instantiationTime.reset();
+        bundleScans.reset();
+        bundleScanTime.reset();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import java.util.Map;
+
+/**
+ * Management interface exposing what {@link ServiceLoader} lookups cost. It is registered with the platform
+ * MBean server under {@link #OBJECT_NAME} while this bundle is active. All times are in nanoseconds and
+ * all values are totals since the bundle was started or {@link #reset()} was last called.
+ */
+public interface ServiceLoaderStatsMXBean {
+
+    String OBJECT_NAME = "org.glassfish.hk2.osgiresourcelocator:type=ServiceLoader";
+
+    /**
+     * @return number of lookups of provider classes or instances
+     */
+    long getLookupCount();
+
+    /**
+     * @return number of lookups answered from what was already known about the service
+     */
+    long getHitCount();
+
+    /**
+     * @return number of lookups which had to load provider classes
+     */
+    long getMissCount();
+
+    /**
+     * @return hits divided by lookups, 0 if there has not been any lookup
+     */
+    double getHitRate();
+
+    /**
+     * @return number of lookups per service name
+     */
+    Map<String, Long> getLookupCountsByService();
+
+    long getClassLoadCount();
+
+    long getClassLoadTime();
+
+    long getInstantiationCount();
+
+    long getInstantiationTime();
+
+    /**
+     * @return number of times the service files of a bundle have been read or taken from the persistent cache
+     */
+    long getBundleScanCount();
+
+    long getBundleScanTime();
+
+    void reset();
+}
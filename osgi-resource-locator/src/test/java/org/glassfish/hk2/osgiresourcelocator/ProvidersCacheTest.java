@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class ProvidersCacheTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void shouldGetWhatWasStored() throws IOException {
+        final File file = new File(dir, "providers.cache");
+        final Map<String, List<String>> services = new LinkedHashMap<String, List<String>>();
+        services.put("a.Service", Arrays.asList("a.Impl", "a.Impl2"));
+        services.put("b.Service", Collections.singletonList("b.Impl"));
+        final ProvidersCache cache = ProvidersCache.empty();
+        cache.put(bundle("file:/a.jar", "a", "1.0.0", 42L), services);
+        cache.put(bundle("file:/b.jar", "b", "2.0.0", 43L), Collections.<String, List<String>>emptyMap());
+        cache.put(bundle("file:/c.jar", null, "0.0.0", 44L), services);
+        cache.store(file);
+
+        final ProvidersCache loaded = ProvidersCache.load(file);
+        assertEquals(services, loaded.get(bundle("file:/a.jar", "a", "1.0.0", 42L)));
+        assertEquals(Collections.emptyMap(), loaded.get(bundle("file:/b.jar", "b", "2.0.0", 43L)));
+        assertEquals(services, loaded.get(bundle("file:/c.jar", null, "0.0.0", 44L)));
+        assertFalse(new File(dir, "providers.cache.tmp").exists());
+    }
+
+    @Test
+    void shouldNotGetDataOfChangedBundles() throws IOException {
+        final File file = new File(dir, "providers.cache");
+        final ProvidersCache cache = ProvidersCache.empty();
+        cache.put(bundle("file:/a.jar", "a", "1.0.0", 42L),
+                Collections.singletonMap("a.Service", Collections.singletonList("a.Impl")));
+        cache.store(file);
+
+        final ProvidersCache loaded = ProvidersCache.load(file);
+        assertNull(loaded.get(bundle("file:/a.jar", "a", "1.0.0", 99L)));
+        assertNull(loaded.get(bundle("file:/a.jar", "a", "1.0.1", 42L)));
+        assertNull(loaded.get(bundle("file:/a.jar", "b", "1.0.0", 42L)));
+        assertNull(loaded.get(bundle("file:/b.jar", "a", "1.0.0", 42L)));
+    }
+
+    @Test
+    void shouldNotGetDataOfChangedReferencedJars() throws IOException {
+        final File file = new File(dir, "providers.cache");
+        final File jar = new File(dir, "a.jar");
+        Files.write(jar.toPath(), new byte[] {1, 2, 3});
+        final String location = "reference:" + jar.toURI();
+        final ProvidersCache cache = ProvidersCache.empty();
+        cache.put(bundle(location, "a", "1.0.0", 42L),
+                Collections.singletonMap("a.Service", Collections.singletonList("a.Impl")));
+        cache.store(file);
+        assertEquals(Collections.singletonMap("a.Service", Collections.singletonList("a.Impl")),
+                ProvidersCache.load(file).get(bundle(location, "a", "1.0.0", 42L)));
+
+        // the framework keeps the bundle's last modification time, but reads the new content
+        Files.write(jar.toPath(), new byte[] {1, 2, 3, 4});
+        assertNull(ProvidersCache.load(file).get(bundle(location, "a", "1.0.0", 42L)));
+    }
+
+    @Test
+    void shouldNotCacheBundlesReferencingDirectories() throws IOException {
+        final File file = new File(dir, "providers.cache");
+        final String location = "reference:" + dir.toURI();
+        final ProvidersCache cache = ProvidersCache.empty();
+        cache.put(bundle(location, "a", "1.0.0", 42L),
+                Collections.singletonMap("a.Service", Collections.singletonList("a.Impl")));
+        cache.store(file);
+        assertNull(ProvidersCache.load(file).get(bundle(location, "a", "1.0.0", 42L)));
+    }
+
+    @Test
+    void shouldStoreOnlyBundlesSeenAgain() throws IOException {
+        final File file = new File(dir, "providers.cache");
+        final ProvidersCache cache = ProvidersCache.empty();
+        cache.put(bundle("file:/a.jar", "a", "1.0.0", 42L),
+                Collections.singletonMap("a.Service", Collections.singletonList("a.Impl")));
+        cache.put(bundle("file:/b.jar", "b", "1.0.0", 42L),
+                Collections.singletonMap("b.Service", Collections.singletonList("b.Impl")));
+        cache.store(file);
+
+        // b.jar has gone, so it is not asked for
+        final ProvidersCache next = ProvidersCache.load(file);
+        assertEquals(Collections.singletonMap("a.Service", Collections.singletonList("a.Impl")),
+                next.get(bundle("file:/a.jar", "a", "1.0.0", 42L)));
+        next.store(file);
+
+        final ProvidersCache loaded = ProvidersCache.load(file);
+        assertEquals(Collections.singletonMap("a.Service", Collections.singletonList("a.Impl")),
+                loaded.get(bundle("file:/a.jar", "a", "1.0.0", 42L)));
+        assertNull(loaded.get(bundle("file:/b.jar", "b", "1.0.0", 42L)));
+    }
+
+    @Test
+    void shouldLoadEmptyCacheIfThereIsNoFile() throws IOException {
+        final ProvidersCache cache = ProvidersCache.load(new File(dir, "providers.cache"));
+        assertNull(cache.get(bundle("file:/a.jar", "a", "1.0.0", 42L)));
+    }
+
+    @Test
+    void shouldLoadEmptyCacheWrittenByOtherJavaVersion() throws IOException {
+        final File file = new File(dir, "providers.cache");
+        final ProvidersCache cache = ProvidersCache.empty();
+        cache.put(bundle("file:/a.jar", "a", "1.0.0", 42L),
+                Collections.singletonMap("a.Service", Collections.singletonList("a.Impl")));
+        cache.store(file);
+        final byte[] content = Files.readAllBytes(file.toPath());
+        // the Java feature version follows magic and format version
+        final int javaVersion = ServiceLoaderImpl.JAVA_FEATURE_VERSION + 1;
+        content[6] = (byte) (javaVersion >>> 24);
+        content[7] = (byte) (javaVersion >>> 16);
+        content[8] = (byte) (javaVersion >>> 8);
+        content[9] = (byte) javaVersion;
+        Files.write(file.toPath(), content);
+
+        assertNull(ProvidersCache.load(file).get(bundle("file:/a.jar", "a", "1.0.0", 42L)));
+    }
+
+    @Test
+    void shouldRejectForeignFile() throws IOException {
+        final File file = new File(dir, "providers.cache");
+        Files.write(file.toPath(), "not a providers cache".getBytes("UTF-8"));
+        assertThrows(IOException.class, () -> ProvidersCache.load(file));
+    }
+
+    @Test
+    void shouldRejectUnsupportedFormatVersion() throws IOException {
+        final File file = new File(dir, "providers.cache");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x484B3253);
+        out.writeShort(1);
+        out.writeInt(0);
+        out.close();
+        Files.write(file.toPath(), bytes.toByteArray());
+        assertThrows(IOException.class, () -> ProvidersCache.load(file));
+    }
+
+    @Test
+    void shouldRejectTruncatedFile() throws IOException {
+        final File file = new File(dir, "providers.cache");
+        final ProvidersCache cache = ProvidersCache.empty();
+        cache.put(bundle("file:/a.jar", "a", "1.0.0", 42L),
+                Collections.singletonMap("a.Service", Arrays.asList("a.Impl", "a.Impl2")));
+        cache.store(file);
+        final byte[] content = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(content, content.length - 3));
+        assertThrows(IOException.class, () -> ProvidersCache.load(file));
+    }
+
+    @Test
+    void shouldRejectCorruptCounts() throws IOException {
+        final File file = new File(dir, "providers.cache");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x484B3253);
+        out.writeShort(3);
+        out.writeInt(ServiceLoaderImpl.JAVA_FEATURE_VERSION);
+        out.writeInt(1);
+        out.writeUTF("file:/a.jar");
+        out.writeUTF("a");
+        out.writeUTF("1.0.0");
+        out.writeLong(42L);
+        out.writeLong(0L);
+        out.writeLong(0L);
+        out.writeInt(1);
+        out.writeUTF("a.Service");
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeUTF("a.Impl");
+        out.close();
+        Files.write(file.toPath(), bytes.toByteArray());
+        assertThrows(IOException.class, () -> ProvidersCache.load(file));
+    }
+
+    private static Bundle bundle(final String location, final String symbolicName, final String version,
+                                 final long lastModified) {
+        return (Bundle) Proxy.newProxyInstance(Bundle.class.getClassLoader(), new Class<?>[] {Bundle.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getLocation".equals(method.getName())) {
+                            return location;
+                        } else if ("getSymbolicName".equals(method.getName())) {
+                            return symbolicName;
+                        } else if ("getVersion".equals(method.getName())) {
+                            return Version.parseVersion(version);
+                        } else if ("getLastModified".equals(method.getName())) {
+                            return lastModified;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
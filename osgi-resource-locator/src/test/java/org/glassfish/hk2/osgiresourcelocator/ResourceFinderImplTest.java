@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class ResourceFinderImplTest {
+
+    @Test
+    void shouldMatchLiterally() {
+        assertTrue(isGlobMatch("MANIFEST.MF", "MANIFEST.MF"));
+        assertFalse(isGlobMatch("MANIFEST.MF", "MANIFEST.MFX"));
+        assertFalse(isGlobMatch("MANIFEST.MF", "MANIFEST.M"));
+        assertFalse(isGlobMatch("MANIFEST.MF", "manifest.mf"));
+    }
+
+    @Test
+    void shouldMatchAnyCharactersWithStar() {
+        assertTrue(isGlobMatch("*", "anything"));
+        assertTrue(isGlobMatch("*", ""));
+        assertTrue(isGlobMatch("*.xml", "beans.xml"));
+        assertTrue(isGlobMatch("*.xml", ".xml"));
+        assertFalse(isGlobMatch("*.xml", "beans.xmls"));
+        assertTrue(isGlobMatch("beans*", "beans.xml"));
+        assertTrue(isGlobMatch("b*s.x*l", "beans.xml"));
+        assertTrue(isGlobMatch("**", "x"));
+    }
+
+    @Test
+    void shouldBacktrackAfterStar() {
+        assertTrue(isGlobMatch("*a.xml", "aaa.xml"));
+        assertTrue(isGlobMatch("*.*.xml", "a.b.c.xml"));
+        assertFalse(isGlobMatch("*a*b", "aaaa"));
+        assertTrue(isGlobMatch("*ab*ab", "abxabab"));
+    }
+
+    @Test
+    void shouldMatchOneCharacterWithQuestionMark() {
+        assertTrue(isGlobMatch("?.xml", "a.xml"));
+        assertFalse(isGlobMatch("?.xml", ".xml"));
+        assertFalse(isGlobMatch("?.xml", "ab.xml"));
+        assertTrue(isGlobMatch("s?rvices", "services"));
+        assertTrue(isGlobMatch("?*", "a"));
+        assertFalse(isGlobMatch("?*", ""));
+    }
+
+    @Test
+    void shouldMatchOnlyGivenPartOfString() {
+        final String path = "META-INF/services/a.Service";
+        assertTrue(ResourceFinderImpl.isGlobMatch("*.Service", path, 18, path.length()));
+        assertTrue(ResourceFinderImpl.isGlobMatch("services", path, 9, 17));
+        assertFalse(ResourceFinderImpl.isGlobMatch("META-INF*", path, 18, path.length()));
+    }
+
+    @Test
+    void shouldMatchDirectChildrenOnly() {
+        assertTrue(ResourceFinderImpl.isMatch("META-INF/beans.xml", "META-INF/", "*.xml", false));
+        assertTrue(ResourceFinderImpl.isMatch("META-INF/services/", "META-INF/", "*", false));
+        assertFalse(ResourceFinderImpl.isMatch("META-INF/services/a.Service", "META-INF/", "*", false));
+        assertFalse(ResourceFinderImpl.isMatch("META-INF/", "META-INF/", "*", false));
+        assertFalse(ResourceFinderImpl.isMatch("OSGI-INF/beans.xml", "META-INF/", "*", false));
+    }
+
+    @Test
+    void shouldMatchAllDescendantsWhenRecursing() {
+        assertTrue(ResourceFinderImpl.isMatch("META-INF/services/a.Service", "META-INF/", "*.Service", true));
+        assertTrue(ResourceFinderImpl.isMatch("META-INF/services/", "META-INF/", "services", true));
+        assertFalse(ResourceFinderImpl.isMatch("META-INF/services/a.Service", "META-INF/", "services", true));
+        assertTrue(ResourceFinderImpl.isMatch("a/b/C.class", "", "*.class", true));
+        assertFalse(ResourceFinderImpl.isMatch("a/b/C.class", "", "*.class", false));
+        assertTrue(ResourceFinderImpl.isMatch("C.class", "", "*.class", false));
+    }
+
+    @Test
+    void shouldTellWhichPatternsMayMatchClassFiles() {
+        assertTrue(ResourceFinderImpl.mayMatchClassFile("*"));
+        assertTrue(ResourceFinderImpl.mayMatchClassFile("*.class"));
+        assertTrue(ResourceFinderImpl.mayMatchClassFile("Foo.class"));
+        assertTrue(ResourceFinderImpl.mayMatchClassFile("Foo?class"));
+        assertTrue(ResourceFinderImpl.mayMatchClassFile("*s"));
+        assertTrue(ResourceFinderImpl.mayMatchClassFile("*.?lass"));
+        assertTrue(ResourceFinderImpl.mayMatchClassFile("Foo*"));
+        assertTrue(ResourceFinderImpl.mayMatchClassFile("*a*ss"));
+        assertFalse(ResourceFinderImpl.mayMatchClassFile("*.xml"));
+        assertFalse(ResourceFinderImpl.mayMatchClassFile("beans.xml"));
+        assertFalse(ResourceFinderImpl.mayMatchClassFile("*.classes"));
+        assertFalse(ResourceFinderImpl.mayMatchClassFile("class"));
+        assertFalse(ResourceFinderImpl.mayMatchClassFile("s?rvices"));
+    }
+
+    private static boolean isGlobMatch(String pattern, String s) {
+        return ResourceFinderImpl.isGlobMatch(pattern, s, 0, s.length());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+class ServiceFileParserTest {
+
+    @Test
+    void shouldFindProvidersInOrder() throws IOException {
+        assertEquals(Arrays.asList("a.B", "c.D", "e.F"), parse("a.B\nc.D\ne.F\n"));
+    }
+
+    @Test
+    void shouldFindLastProviderWithoutLineTerminator() throws IOException {
+        assertEquals(Arrays.asList("a.B", "c.D"), parse("a.B\nc.D"));
+    }
+
+    @Test
+    void shouldFindNothingInEmptyFile() throws IOException {
+        assertTrue(parse("").isEmpty());
+        assertTrue(parse("\n\n \t\n# nothing here\n").isEmpty());
+    }
+
+    @Test
+    void shouldIgnoreComments() throws IOException {
+        assertEquals(Arrays.asList("a.B", "c.D"), parse("# providers\na.B # the first one\nc.D#the second one\n#e.F\n"));
+    }
+
+    @Test
+    void shouldIgnoreSurroundingSpaceAndTabs() throws IOException {
+        assertEquals(Arrays.asList("a.B", "c.D"), parse("  a.B  \n\t c.D\t \n"));
+    }
+
+    @Test
+    void shouldIgnoreBlankLines() throws IOException {
+        assertEquals(Arrays.asList("a.B", "c.D"), parse("\n\na.B\n   \n\t\nc.D\n\n"));
+    }
+
+    @Test
+    void shouldAcceptAllLineTerminators() throws IOException {
+        assertEquals(Arrays.asList("a.B", "c.D", "e.F", "g.H"), parse("a.B\r\nc.D\re.F\ng.H\r\n"));
+    }
+
+    @Test
+    void shouldListDuplicatesOnce() throws IOException {
+        assertEquals(Arrays.asList("a.B", "c.D"), parse("a.B\nc.D\na.B # again\n  c.D\n"));
+    }
+
+    @Test
+    void shouldConsiderFirstNameOfLineOnly() throws IOException {
+        assertEquals(Arrays.asList("a.B", "e.F"), parse("a.B c.D\ne.F\tg.H\n"));
+    }
+
+    @Test
+    void shouldSkipByteOrderMark() throws IOException {
+        final byte[] content = concat(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF},
+                "a.B\nc.D\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("a.B", "c.D"), ServiceFileParser.parse(new ByteArrayInputStream(content)));
+    }
+
+    @Test
+    void shouldDecodeUtf8() throws IOException {
+        assertEquals(Arrays.asList("café.Crème", "漢字.クラス", "a.B"),
+                parse("café.Crème\n漢字.クラス # é\na.B\n"));
+    }
+
+    @Test
+    void shouldParseOnlyValidBytesOfBuffer() {
+        final byte[] buf = "a.B\nc.D\ne.F\n".getBytes(StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("a.B", "c"), ServiceFileParser.parse(buf, 5));
+        assertEquals(Collections.emptyList(), ServiceFileParser.parse(buf, 0));
+    }
+
+    @Test
+    void shouldParseFilesLargerThanBuffer() throws IOException {
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            content.append("a.Provider").append(i).append(" # provider number ").append(i).append('\n');
+        }
+        final List<String> providerNames = parse(content.toString());
+        assertEquals(10000, providerNames.size());
+        assertEquals("a.Provider0", providerNames.get(0));
+        assertEquals("a.Provider9999", providerNames.get(9999));
+        // the per thread buffer must not leave anything behind
+        assertEquals(Arrays.asList("a.B"), parse("a.B\n"));
+    }
+
+    @Test
+    void shouldCloseStream() throws IOException {
+        final boolean[] closed = new boolean[1];
+        final InputStream in = new ByteArrayInputStream("a.B\n".getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+        ServiceFileParser.parse(in);
+        assertTrue(closed[0]);
+    }
+
+    private static List<String> parse(String content) throws IOException {
+        return ServiceFileParser.parse(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        final byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
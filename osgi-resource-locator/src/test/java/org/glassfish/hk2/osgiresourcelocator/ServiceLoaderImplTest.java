@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2026 Contributors to Eclipse Foundation. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v. 2.0, which is available at
+ * http://www.eclipse.org/legal/epl-2.0.
+ *
+ * This Source Code may also be made available under the following Secondary
+ * Licenses when the conditions for such availability set forth in the
+ * Eclipse Public License v. 2.0 are satisfied: GNU General Public License,
+ * version 2 with the GNU Classpath Exception, which is available at
+ * https://www.gnu.org/software/classpath/license.html.
+ *
+ * SPDX-License-Identifier: EPL-2.0 OR GPL-2.0 WITH Classpath-exception-2.0
+ */
+
+package org.glassfish.hk2.osgiresourcelocator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoaderImpl.ProviderEntry;
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoaderImpl.ProvidersList;
+import org.glassfish.hk2.osgiresourcelocator.ServiceLoaderImpl.ProvidersPerBundle;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class ServiceLoaderImplTest {
+
+    @Test
+    void shouldOrderProvidersByBundleId() {
+        ProvidersList list = new ProvidersList().withChanges(ids(5, 2, 9), Arrays.asList(
+                providers(5, 0, "a.Service", "b5.Impl"),
+                providers(2, 0, "a.Service", "b2.Impl", "b2.Impl2"),
+                providers(9, 0, "a.Service", "b9.Impl")), ids());
+        assertEquals(Arrays.asList("2:b2.Impl", "2:b2.Impl2", "5:b5.Impl", "9:b9.Impl"), names(list, "a.Service"));
+
+        list = list.withChanges(ids(7, 1), Arrays.asList(
+                providers(7, 0, "a.Service", "b7.Impl"),
+                providers(1, 0, "a.Service", "b1.Impl")), ids());
+        assertEquals(Arrays.asList("1:b1.Impl", "2:b2.Impl", "2:b2.Impl2", "5:b5.Impl", "7:b7.Impl", "9:b9.Impl"),
+                names(list, "a.Service"));
+    }
+
+    @Test
+    void shouldOrderProvidersByPriorityFirst() {
+        final ProvidersList list = new ProvidersList().withChanges(ids(1, 2, 3), Arrays.asList(
+                providers(1, 10, "a.Service", "b1.Impl"),
+                providers(2, -1, "a.Service", "b2.Impl"),
+                providers(3, 0, "a.Service", "b3.Impl")), ids());
+        assertEquals(Arrays.asList("2:b2.Impl", "3:b3.Impl", "1:b1.Impl"), names(list, "a.Service"));
+    }
+
+    @Test
+    void shouldReplaceProvidersOfUpdatedBundle() {
+        final ProvidersList list = new ProvidersList().withChanges(ids(1, 2, 3), Arrays.asList(
+                providers(1, 0, "a.Service", "b1.Impl"),
+                providers(2, 0, "a.Service", "b2.Impl"),
+                providers(3, 0, "a.Service", "b3.Impl")), ids());
+        final Map<String, List<String>> services = new LinkedHashMap<String, List<String>>();
+        services.put("a.Service", Arrays.asList("b2.New", "b2.New2"));
+        services.put("b.Service", Collections.singletonList("b2.Other"));
+        final ProvidersList updated = list.withChanges(ids(2),
+                Collections.singletonList(new ProvidersPerBundle(2, services)), ids());
+
+        assertEquals(Arrays.asList("1:b1.Impl", "2:b2.New", "2:b2.New2", "3:b3.Impl"), names(updated, "a.Service"));
+        assertEquals(Collections.singletonList("2:b2.Other"), names(updated, "b.Service"));
+        assertEquals(services.keySet(), updated.getServiceNames(2));
+        // providers of the other bundles are the very same entries
+        assertSame(list.getProviders("a.Service").get(0), updated.getProviders("a.Service").get(0));
+        assertSame(list.getProviders("a.Service").get(2), updated.getProviders("a.Service").get(3));
+        // the original list is left alone
+        assertEquals(Arrays.asList("1:b1.Impl", "2:b2.Impl", "3:b3.Impl"), names(list, "a.Service"));
+        assertTrue(list.getProviders("b.Service").isEmpty());
+    }
+
+    @Test
+    void shouldRemoveProvidersOfRemovedBundle() {
+        final ProvidersPerBundle providers2 = providers(2, 0, "a.Service", "b2.Impl");
+        providers2.put("b.Service", Collections.singletonList("b2.Other"));
+        final ProvidersList list = new ProvidersList().withChanges(ids(1, 2), Arrays.asList(
+                providers(1, 0, "a.Service", "b1.Impl"), providers2), ids());
+        final ProvidersList removed = list.withChanges(ids(2), Collections.<ProvidersPerBundle>emptyList(), ids());
+
+        assertEquals(Collections.singletonList("1:b1.Impl"), names(removed, "a.Service"));
+        // a service without any provider left is gone from the index
+        assertTrue(removed.getProviders("b.Service").isEmpty());
+        assertTrue(removed.getServiceNames(2).isEmpty());
+        assertTrue(removed.getProviders(2).isEmpty());
+        assertEquals(Arrays.asList("1:b1.Impl", "2:b2.Impl"), names(list, "a.Service"));
+    }
+
+    @Test
+    void shouldRenewEntriesInPlace() {
+        final ProvidersList list = new ProvidersList().withChanges(ids(1, 2, 3), Arrays.asList(
+                providers(1, 0, "a.Service", "b1.Impl"),
+                providers(2, 0, "a.Service", "b2.Impl", "b2.Impl2"),
+                providers(3, 0, "a.Service", "b3.Impl")), ids());
+        final ProviderEntry unloadable = list.getProviders("a.Service").get(1);
+        unloadable.setUnloadable();
+        final ProvidersList renewed = list.withChanges(ids(), Collections.<ProvidersPerBundle>emptyList(), ids(2));
+
+        assertEquals(names(list, "a.Service"), names(renewed, "a.Service"));
+        assertSame(list.getProviders("a.Service").get(0), renewed.getProviders("a.Service").get(0));
+        assertNotSame(unloadable, renewed.getProviders("a.Service").get(1));
+        assertFalse(renewed.getProviders("a.Service").get(1).isUnloadable());
+        assertSame(list.getProviders("a.Service").get(3), renewed.getProviders("a.Service").get(3));
+    }
+
+    private static ProvidersPerBundle providers(long bundleId, int priority, String serviceName,
+                                                String... providerNames) {
+        final ProvidersPerBundle providers = new ProvidersPerBundle(bundleId);
+        providers.setPriority(priority);
+        providers.put(serviceName, Arrays.asList(providerNames));
+        return providers;
+    }
+
+    private static Set<Long> ids(long... bundleIds) {
+        final Set<Long> ids = new HashSet<Long>();
+        for (long bundleId : bundleIds) {
+            ids.add(bundleId);
+        }
+        return ids;
+    }
+
+    /**
+     * @return providers of the given service as bundle id and provider name
+     */
+    private static List<String> names(ProvidersList list, String serviceName) {
+        final List<String> names = new ArrayList<String>();
+        for (ProviderEntry providerEntry : list.getProviders(serviceName)) {
+            names.add(providerEntry.getBundleId() + ":" + providerEntry.getProviderName());
+        }
+        return names;
+    }
+}